@@ -0,0 +1,492 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public class Benchmark {
+    /*
+     * timing harness for the sketchers, e.g.
+     * java com.h2o.Benchmark rowindex data/adult.csv 0.1
+     * java com.h2o.Benchmark rowindex synthetic 100000 10 0.1
+     * java com.h2o.Benchmark rowshards data/adult.csv 0.1
+     * java com.h2o.Benchmark rowalloc data/adult.csv 0.1
+     * java com.h2o.Benchmark distance synthetic 100000 16 0.5
+     * java com.h2o.Benchmark roworder data/wine.csv 0.3
+     * java com.h2o.Benchmark rowprecision data/wine.csv 0.3
+     * java com.h2o.Benchmark pairwise data/adult.csv
+     * java com.h2o.Benchmark smoke data/wine.csv
+     */
+    public static void main(String[] args) {
+        if (args == null || args.length < 2) {
+            System.out.println("usage: Benchmark (rowindex | rowshards | rowalloc | distance | roworder | rowprecision | pairwise | colweighted | colreduced | cursvd | cursampling | smoke) (file | synthetic nRows nCols) [radius]");
+            return;
+        }
+        String fileName = args[1];
+        int next = 2;
+        if (fileName.equalsIgnoreCase("synthetic")) {
+            fileName = writeSynthetic(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            next = 4;
+        }
+        double radius = args.length > next ? Double.parseDouble(args[next]) : 0.1;
+        if (args[0].equalsIgnoreCase("rowindex"))
+            rowIndex(fileName, radius);
+        if (args[0].equalsIgnoreCase("rowshards"))
+            rowShards(fileName, radius);
+        if (args[0].equalsIgnoreCase("rowalloc"))
+            rowAllocation(fileName, radius);
+        if (args[0].equalsIgnoreCase("distance"))
+            distance(fileName, radius);
+        if (args[0].equalsIgnoreCase("roworder"))
+            rowOrder(fileName, radius);
+        if (args[0].equalsIgnoreCase("rowprecision"))
+            rowPrecision(fileName, radius);
+        if (args[0].equalsIgnoreCase("pairwise"))
+            pairwise(fileName);
+        if (args[0].equalsIgnoreCase("colweighted"))
+            colWeighted(fileName, radius);
+        if (args[0].equalsIgnoreCase("colreduced"))
+            colReduced(fileName);
+        if (args[0].equalsIgnoreCase("cursvd"))
+            curSVD(fileName);
+        if (args[0].equalsIgnoreCase("cursampling"))
+            curSampling(fileName);
+        if (args[0].equalsIgnoreCase("smoke"))
+            smoke(fileName);
+    }
+
+    private static String writeSynthetic(int nRows, int nCols) {
+        Datasets d = new Datasets();
+        d.writeDataset(nRows, nCols, "cluster");
+        return "cluster.csv";
+    }
+
+    private static void smoke(String fileName) {
+        /* quick runs of option combinations that have broken before; each prints ok or FAILED */
+        for (String indexType : new String[]{"linear", "grid"}) {
+            RowSketcher.random = new java.util.Random(RowSketcher.seed);
+            RowSketcher rs = new RowSketcher(fileName, "yes", 0);
+            rs.setIndexType(indexType);
+            rs.setTargetSize(50);
+            rs.compute();
+            check(indexType + " index with target size", rs.getRowIndices().length <= 50);
+        }
+        for (int target : new int[]{50, 500}) {
+            RowSketcher.random = new java.util.Random(RowSketcher.seed);
+            RowSketcher sharded = new RowSketcher(fileName, "yes", 0);
+            sharded.setShards(4);
+            sharded.setTargetSize(target);
+            sharded.compute();
+            check("shards with target size " + target, sharded.getRowIndices().length <= target);
+        }
+        RowSketcher.random = new java.util.Random(RowSketcher.seed);
+        RowSketcher rs = new RowSketcher(fileName, "yes", 0);
+        rs.setIndexType("grid");
+        rs.setMemoryBudget(1 << 20);
+        rs.compute();
+        check("grid index with memory budget", rs.getRowIndices().length > 0);
+
+        String emptyFile = writeHeaderOnly(fileName);
+        RowSketcher empty = new RowSketcher(new DataStream(emptyFile, "no"), 0);
+        check("empty stream", empty.snapshot().getNumExemplars() == 0);
+        empty = new RowSketcher(new DataStream(emptyFile, "no"), 0);
+        empty.compute();
+        check("empty stream computed", empty.snapshot().getNumExemplars() == 0);
+
+        RowSketcher.random = new java.util.Random(RowSketcher.seed);
+        DataStream stream = new DataStream(fileName, "no");
+        RowSketcher streamed = new RowSketcher(stream, 0);
+        streamed.setIndexType("grid");
+        double[] row = new double[stream.getNumCols()];
+        int nRows = 0;
+        for (; stream.next(row); nRows++)
+            streamed.offer(row);
+        check("grid index on a raw stream", total(streamed.snapshot().getFrequencies()) == nRows);
+
+        RowSketch[] halves = new RowSketch[2];
+        for (int h = 0; h < 2; h++) {
+            RowSketcher.random = new java.util.Random(RowSketcher.seed);
+            RowSketcher half = new RowSketcher(writeHalfWithConstant(fileName, h), "yes", 0);
+            half.compute();
+            halves[h] = half.snapshot();
+        }
+        RowSketch merged = RowSketch.merge(halves[0], halves[1]);
+        System.out.println(halves[0].getNumExemplars() + " and " + halves[1].getNumExemplars()
+                + " exemplars merge to " + merged.getNumExemplars());
+        check("merge with a constant column", merged.getNumExemplars() < halves[0].getNumExemplars() + halves[1].getNumExemplars()
+                && total(merged.getFrequencies()) == total(halves[0].getFrequencies()) + total(halves[1].getFrequencies()));
+
+        /* a member of an exemplar with a missing coordinate may lie anywhere along that coordinate */
+        String[] names = new String[]{"a", "b", "c", "d"};
+        RowSketch complete = new RowSketch(names, new double[][]{{0, 0, 0, 0}}, new double[]{1}, new double[]{0},
+                new boolean[]{false}, 0.3, RowSketcher.seed, null, null);
+        RowSketch missing = new RowSketch(names, new double[][]{{0, 0, 0, Double.NaN}}, new double[]{1}, new double[]{0},
+                new boolean[]{false}, 0.3, RowSketcher.seed, null, null);
+        check("merge keeps an exemplar with a missing coordinate apart", RowSketch.merge(complete, missing).getNumExemplars() == 2);
+    }
+
+    private static String writeHalfWithConstant(String fileName, int half) {
+        /* every other row of the file, starting at half, with a constant column added, in a temporary file */
+        String halfFile = "half" + half + ".csv";
+        try {
+            java.io.File file = scratchFile("half" + half);
+            halfFile = file.getPath();
+            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.FileReader(fileName));
+            java.io.PrintWriter writer = new java.io.PrintWriter(file, "UTF-8");
+            writer.println(reader.readLine() + ",constant");
+            String record;
+            for (int i = 0; (record = reader.readLine()) != null; i++) {
+                if (i % 2 == half)
+                    writer.println(record + ",1");
+            }
+            writer.close();
+            reader.close();
+        } catch (java.io.IOException e) {
+            System.out.println("Unable to write " + halfFile);
+        }
+        return halfFile;
+    }
+
+    private static String writeHeaderOnly(String fileName) {
+        /* a copy of the first line of the file, with no rows, in a temporary file */
+        String emptyFile = "empty.csv";
+        try {
+            java.io.File file = scratchFile("empty");
+            emptyFile = file.getPath();
+            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.FileReader(fileName));
+            java.io.PrintWriter writer = new java.io.PrintWriter(file, "UTF-8");
+            writer.println(reader.readLine());
+            writer.close();
+            reader.close();
+        } catch (java.io.IOException e) {
+            System.out.println("Unable to write " + emptyFile);
+        }
+        return emptyFile;
+    }
+
+    private static java.io.File scratchFile(String prefix) throws java.io.IOException {
+        /* a temporary csv file, removed when the program exits, so smoke runs leave the working directory alone */
+        java.io.File file = java.io.File.createTempFile(prefix, ".csv");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static double total(double[] values) {
+        double sum = 0;
+        for (double x : values)
+            sum += x;
+        return sum;
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println("smoke: " + name + (passed ? " ok" : " FAILED"));
+    }
+
+    private static void rowIndex(String fileName, double radius) {
+        String[] indexTypes = new String[]{"linear", "grid"};
+        long[] times = new long[indexTypes.length];
+        int[] sizes = new int[indexTypes.length];
+        for (int t = 0; t < indexTypes.length; t++) {
+            RowSketcher.random = new java.util.Random(RowSketcher.seed);
+            RowSketcher rs = new RowSketcher(fileName, "yes", radius);
+            rs.setIndexType(indexTypes[t]);
+            long ms1 = System.currentTimeMillis();
+            rs.compute();
+            times[t] = System.currentTimeMillis() - ms1;
+            sizes[t] = rs.getRowIndices().length;
+        }
+        for (int t = 0; t < indexTypes.length; t++)
+            System.out.println(indexTypes[t] + " index: " + sizes[t] + " exemplars in " + times[t] + " ms");
+    }
+
+    private static void rowShards(String fileName, double radius) {
+        int maxShards = Runtime.getRuntime().availableProcessors();
+        for (int nShards = 1; nShards <= maxShards; nShards *= 2) {
+            RowSketcher.random = new java.util.Random(RowSketcher.seed);
+            RowSketcher rs = new RowSketcher(fileName, "yes", radius);
+            rs.setIndexType("grid");
+            rs.setShards(nShards);
+            long ms1 = System.currentTimeMillis();
+            rs.compute();
+            long ms2 = System.currentTimeMillis();
+            System.out.println(nShards + " shards: " + rs.getRowIndices().length + " exemplars in " + (ms2 - ms1) + " ms");
+        }
+    }
+
+    private static void rowOrder(String fileName, double radius) {
+        String[] orders = new String[]{"random", "cyclic", "recent", "populous"};
+        for (String indexType : new String[]{"linear", "grid"}) {
+            for (String order : orders) {
+                RowSketcher.random = new java.util.Random(RowSketcher.seed);
+                RowSketcher rs = new RowSketcher(fileName, "yes", radius);
+                rs.setIndexType(indexType);
+                rs.setVisitingOrder(order);
+                long ms1 = System.currentTimeMillis();
+                rs.compute();
+                long ms2 = System.currentTimeMillis();
+                System.out.println(indexType + " index, " + order + " order: " + rs.getRowIndices().length + " exemplars, "
+                        + (double) rs.getDistanceEvaluations() / rs.getRowsProcessed() + " distances per row in " + (ms2 - ms1) + " ms");
+            }
+        }
+    }
+
+    private static void rowPrecision(String fileName, double radius) {
+        /* exemplars only, then data and exemplars, in each precision */
+        String[] precisions = new String[]{Precision.DOUBLE, Precision.FLOAT, Precision.SHORT, Precision.BYTE};
+        for (boolean compactData : new boolean[]{false, true}) {
+            for (String precision : precisions) {
+                RowSketcher.random = new java.util.Random(RowSketcher.seed);
+                RowSketcher rs = compactData ? new RowSketcher(fileName, "yes", radius, precision)
+                        : new RowSketcher(fileName, "yes", radius);
+                rs.setPrecision(precision);
+                long ms1 = System.currentTimeMillis();
+                rs.compute();
+                long ms2 = System.currentTimeMillis();
+                System.out.println((compactData ? "data and exemplars " : "exemplars ") + precision + ": "
+                        + rs.getRowIndices().length + " exemplars, " + rs.getDistanceEvaluations() + " distance tests, "
+                        + (ms2 - ms1) + " ms");
+            }
+        }
+    }
+
+    private static void rowAllocation(String fileName, double radius) {
+        /* heap bytes allocated by the sketching loop alone, after a warm-up pass */
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        double[][] data = new DataSource(fileName, "yes").getData();
+        for (int pass = 0; pass < 2; pass++) {
+            RowSketcher rs = new RowSketcher(fileName, "yes", radius);
+            long bytes1 = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (double[] row : data)
+                rs.offer(row);
+            long bytes2 = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            if (pass > 0)
+                System.out.println(rs.snapshot().getNumExemplars() + " exemplars, "
+                        + (double) (bytes2 - bytes1) / data.length + " bytes allocated per row");
+        }
+    }
+
+    private static void distance(String fileName, double radius) {
+        /* the shared kernel against the per-element loop it replaced, on all pairs of the first rows */
+        double[][] data = new DataSource(fileName, "yes").getData();
+        int n = Math.min(data.length, 2000);
+        int nCols = data[0].length;
+        double[] arena = new double[n * nCols];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(data[i], 0, arena, i * nCols, nCols);
+        double delta = radius * radius;
+        for (int pass = 0; pass < 5; pass++) {
+            double check1 = 0;
+            double check2 = 0;
+            long ns1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < n; k++)
+                    check1 += plainRowDistance(arena, k * nCols, data[i], delta) < delta ? 1 : 0;
+            }
+            long ns2 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < n; k++)
+                    check2 += Distances.rowDistance(arena, k * nCols, data[i], delta) < delta ? 1 : 0;
+            }
+            long ns3 = System.nanoTime();
+            System.out.println("plain loop " + (double) (ns2 - ns1) / n / n + " ns, kernel "
+                    + (double) (ns3 - ns2) / n / n + " ns per distance, hits " + check1 + " " + check2);
+        }
+    }
+
+    private static double plainRowDistance(double[] exemplars, int offset, double[] e2, double delta) {
+        int nCols = e2.length;
+        double sum = 0;
+        int n = 0;
+        for (int j = 0; j < nCols; j++) {
+            double d1 = exemplars[offset + j];
+            double d2 = e2[j];
+            if (!Double.isNaN(d1) && !Double.isNaN(d2)) {
+                sum += (d1 - d2) * (d1 - d2);
+                n++;
+            }
+            if (sum > delta)
+                return sum;
+        }
+        sum *= (double) nCols / n;
+        if (n < (nCols / 2.0))
+            return Double.NaN;
+        return sum;
+    }
+
+    private static void colWeighted(String fileName, double radius) {
+        /*
+         * columns selected on all rows against columns selected on the weighted row sketch, both scored by
+         * their correlation on all rows
+         */
+        RowSketcher.random = new java.util.Random(RowSketcher.seed);
+        RowSketcher rs = new RowSketcher(fileName, "yes", radius);
+        rs.setIndexType("grid");
+        rs.compute();
+        String[] colNames = new DataSource(fileName, "yes").getColumnNames();
+        String[] sketchNames = new DataSource("rowsketch.csv", "yes").getColumnNames();
+        int nCols = colNames.length;
+        for (int k = 1; k < nCols; k *= 2) {
+            ColumnSketcher full = new ColumnSketcher(fileName, "yes", k);
+            long ms1 = System.currentTimeMillis();
+            full.compute();
+            long ms2 = System.currentTimeMillis();
+            ColumnSketcher sketched = new ColumnSketcher("rowsketch.csv", "yes", k);
+            sketched.setWeighted(true);
+            sketched.compute();
+            long ms3 = System.currentTimeMillis();
+            int[] chosen = sketched.getColIndices();
+            int[] mapped = new int[chosen.length];
+            for (int c = 0; c < chosen.length; c++)
+                mapped[c] = java.util.Arrays.asList(colNames).indexOf(sketchNames[chosen[c]]);
+            System.out.println(k + " columns: all rows " + java.util.Arrays.toString(full.getColIndices())
+                    + " r = " + full.getCorrelation(full.getColIndices()) + " in " + (ms2 - ms1) + " ms, sketch "
+                    + java.util.Arrays.toString(mapped) + " r = " + full.getCorrelation(mapped) + " in "
+                    + (ms3 - ms2) + " ms (" + rs.getRowIndices().length + " exemplars)");
+        }
+    }
+
+    private static void colReduced(String fileName) {
+        /*
+         * columns selected by the pairs engine on row samples of growing size against the exact selection on all
+         * rows, all scored by their correlation on all rows
+         */
+        int k = Math.max(1, new DataSource(fileName, "yes").getNumCols() / 2);
+        ColumnSketcher full = new ColumnSketcher(fileName, "yes", k);
+        long ms1 = System.currentTimeMillis();
+        full.compute();
+        long ms2 = System.currentTimeMillis();
+        System.out.println("all rows: " + java.util.Arrays.toString(full.getColIndices()) + " r = "
+                + full.getCorrelation(full.getColIndices()) + " in " + (ms2 - ms1) + " ms");
+        for (int size = 500; size <= 4000; size *= 2) {
+            ColumnSketcher reduced = new ColumnSketcher(fileName, "yes", k);
+            reduced.setEngine("pairs");
+            reduced.setRowReduction(size);
+            ms1 = System.currentTimeMillis();
+            reduced.compute();
+            ms2 = System.currentTimeMillis();
+            System.out.println(size + " rows: " + java.util.Arrays.toString(reduced.getColIndices()) + " r = "
+                    + full.getCorrelation(reduced.getColIndices()) + " in " + (ms2 - ms1) + " ms, distortion "
+                    + reduced.getDistortion());
+        }
+    }
+
+    private static void curSampling(String fileName) {
+        /* CUR error with norm and with leverage score probabilities, for growing numbers of rows and columns */
+        DataSource dataSource = new DataSource(fileName, "yes");
+        int n = dataSource.getNumCols();
+        int k = Math.max(1, n / 20);
+        for (int c = 2 * k; c <= n; c *= 2) {
+            int r = Math.min(dataSource.getNumRows(), 2 * c);
+            String line = "c = " + c + ", r = " + r + ", k = " + k;
+            for (String sampling : new String[]{"norms", "leverage"}) {
+                CURSketcher curs = new CURSketcher(fileName, "yes", r, c, k, 123);
+                curs.setSVD("randomized");
+                curs.setSampling(sampling);
+                curs.compute();
+                line += ", " + sampling + " relative error " + relativeError(dataSource, curs);
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static double relativeError(DataSource dataSource, CURSketcher curs) {
+        /* ||A - C U R|| / ||A||, Frobenius norms */
+        double[][] A = dataSource.getData();
+        double[][] CUR = Gemm.multiply(Gemm.multiply(curs.getC(), curs.getU(), 1), curs.getR(), 1);
+        double residual = 0;
+        double total = 0;
+        for (int i = 0; i < dataSource.getNumRows(); i++) {
+            for (int j = 0; j < dataSource.getNumCols(); j++) {
+                residual += (A[i][j] - CUR[i][j]) * (A[i][j] - CUR[i][j]);
+                total += A[i][j] * A[i][j];
+            }
+        }
+        return Math.sqrt(residual / total);
+    }
+
+    private static void curSVD(String fileName) {
+        /* CUR with half the columns and as many rows, rank c / 10, by full and by randomized SVD */
+        DataSource dataSource = new DataSource(fileName, "yes");
+        int n = dataSource.getNumCols();
+        int c = Math.max(1, n / 2);
+        int k = Math.max(1, c / 10);
+        for (String svd : new String[]{"full", "randomized"}) {
+            CURSketcher curs = new CURSketcher(fileName, "yes", c, c, k, 123);
+            curs.setSVD(svd);
+            long ms1 = System.currentTimeMillis();
+            curs.compute();
+            long ms2 = System.currentTimeMillis();
+            System.out.println(svd + " SVD: c = r = " + c + ", k = " + k + " in " + (ms2 - ms1)
+                    + " ms, relative error " + relativeError(dataSource, curs));
+        }
+    }
+
+    private static void pairwise(String fileName) {
+        /* distances between all pairs of the first rows: the original per column loop, per pair, and tiled */
+        DataSource dataSource = new DataSource(fileName, "yes");
+        double[][] data = dataSource.getData();
+        int n = Math.min(dataSource.getNumRows(), 4000);
+        int nCols = dataSource.getNumCols();
+        double[] perColumn = new double[(int) PairwiseStore.pairs(n)];
+        double[] perPair = new double[perColumn.length];
+        PairwiseStore tiled = new PairwiseStore(n, "heap");
+        double[] block = new double[PairwiseStore.BLOCK];
+        for (int pass = 0; pass < 5; pass++) {
+            long ns1 = System.nanoTime();
+            java.util.Arrays.fill(perColumn, 0);
+            for (int k = 0; k < nCols; k++) {
+                int ij = 0;
+                for (int i = 1; i < n; i++) {
+                    double[] ri = new double[]{data[i][k]};
+                    for (int j = 0; j < i; j++) {
+                        double[] rj = new double[]{data[j][k]};
+                        double distance = Distances.squaredDistance(ri, rj);
+                        if (!Double.isNaN(distance))
+                            perColumn[ij] += distance;
+                        ij++;
+                    }
+                }
+            }
+            long ns2 = System.nanoTime();
+            int ij = 0;
+            for (int i = 1; i < n; i++) {
+                for (int j = 0; j < i; j++) {
+                    double distances = 0;
+                    for (int k = 0; k < nCols; k++) {
+                        double d = data[i][k] - data[j][k];
+                        if (!Double.isNaN(d))
+                            distances += d * d;
+                    }
+                    perPair[ij++] = distances;
+                }
+            }
+            long ns3 = System.nanoTime();
+            Distances.pairwiseSquaredDistances(Distances.columnMajor(data, n, nCols), n, tiled);
+            long ns4 = System.nanoTime();
+            long mismatches = 0;
+            for (long from = 0; from < tiled.size(); from += PairwiseStore.BLOCK) {
+                int length = tiled.blockLength(from);
+                tiled.read(from, block, length);
+                for (int b = 0; b < length; b++) {
+                    int p = (int) from + b;
+                    mismatches += perColumn[p] != block[b] || perPair[p] != block[b] ? 1 : 0;
+                }
+            }
+            double pairs = perColumn.length;
+            System.out.println("per column " + (ns2 - ns1) / pairs + " ns, per pair " + (ns3 - ns2) / pairs
+                    + " ns, tiled " + (ns4 - ns3) / pairs + " ns per pair, mismatches " + mismatches);
+        }
+    }
+}
@@ -22,34 +22,88 @@ public class CURSketcher {
 
     private int nRows, nCols;
     private int r, c, k;
-    private int nDistances;
     private int[] rowPicks;
     private int[] colPicks;
     private double[][] C;
     private double[][] U;
-    private double[] R;
+    private double[][] R;
     private double[][] A;
+    private double[][] rows;
+    private String fileName, normalize;
+    private boolean streaming;
     private String[] colNames;
-    private double[] distancesBetweenRowsOnAllColumns;
-    private double[] distancesBetweenRowsOnSelectedColumns;
+    private PairwiseStore distancesBetweenRowsOnAllColumns;
+    private PairwiseStore distancesBetweenRowsOnSelectedColumns;
+    private String storage = "heap";
     private double maxCorrelation;
     private DataSource dataSource;
     private Random random;
+    private String svd = "full";
+    private int oversampling = 10;
+    private int powerIterations = 2;
+    private int nThreads = 1;
+    private String sampling = "norms";
 
     public CURSketcher(String fileName, String normalize, int r, int c, int k, int seed) {
+        this(fileName, normalize, r, c, k, seed, "memory");
+    }
+
+    public CURSketcher(String fileName, String normalize, int r, int c, int k, int seed, String source) {
+        /*
+         * source "memory" reads the whole matrix; "stream" reads the file twice instead, once for the row and
+         * column norms and once for the sampled rows and columns, so that only O(m c + r n) values are held.
+         * A streamed sketch has no Frobenius correlation, which needs the distances between all rows.
+         */
         this.r = r;
         this.c = c;
-        this.k = k;
-        if (k == 0)
-            k = Math.min(r, c);
+        this.k = k == 0 ? Math.min(r, c) : k;
         random = new Random(seed);
-        this.dataSource = new DataSource(fileName, normalize);
+        this.fileName = fileName;
+        this.normalize = normalize;
+        if (source.equalsIgnoreCase("stream")) {
+            streaming = true;
+            return;
+        }
+        this.dataSource = new DataSource(fileName, normalize, Precision.DOUBLE, "rows");
         this.maxCorrelation = maxCorrelation;
         A = dataSource.getData();
         colNames = dataSource.getColumnNames();
         nRows = dataSource.getNumRows();
         nCols = dataSource.getNumCols();
-        nDistances = nRows * (nRows - 1) / 2;
+    }
+
+    public void setStorage(String storage) {
+        /* where pairwise distances are kept: "heap", or "mapped" for a memory-mapped temporary file */
+        this.storage = storage;
+    }
+
+    public void setSVD(String svd) {
+        /*
+         * how the singular vectors of C are found: "full" decomposes C'C by Golub-Reinsch, which is cubic in c;
+         * "randomized" finds only the k leading ones, see RandomizedSVD and setRandomization
+         */
+        this.svd = svd;
+    }
+
+    public void setRandomization(int oversampling, int powerIterations) {
+        /* extra random vectors beyond k, and passes through C'C, for the "randomized" SVD */
+        this.oversampling = oversampling;
+        this.powerIterations = powerIterations;
+    }
+
+    public void setSampling(String sampling) {
+        /*
+         * how rows and columns are weighted: "norms" (the default) by their squared norms; "leverage" by their
+         * approximate rank k leverage scores, the squared row norms of the leading k left and right singular
+         * vectors found by the randomized SVD of A (see setRandomization), which reach the same accuracy with
+         * fewer rows and columns. Leverage needs the data in memory.
+         */
+        this.sampling = sampling;
+    }
+
+    public void setThreads(int nThreads) {
+        /* matrix products run on this many threads, see Gemm */
+        this.nThreads = Math.max(1, nThreads);
     }
 
     public int[] getRowIndices() {
@@ -68,7 +122,7 @@ public class CURSketcher {
         return U;
     }
 
-    public double[] getR() {
+    public double[][] getR() {
         return R;
     }
 
@@ -76,6 +130,43 @@ public class CURSketcher {
         //LinearTimeCUR(A, r, c, k, random_seed=123):
         // Ref: https://www.stat.berkeley.edu/~mmahoney/pubs/matrix3_SICOMP.pdf
         // Ref: https://www.cs.utah.edu/~jeffp/teaching/cs7931-S15/cs7931/5-cur.pdf
+        // Compute row and column norms, while reading the file when streaming.
+        double ssA = 0.;
+        double[] ssCols;
+        double[] ssRows;
+        DataStream stream = null;
+        if (streaming) {
+            stream = new DataStream(fileName, normalize);
+            colNames = stream.getColumnNames();
+            nCols = stream.getNumCols();
+            nRows = 0;
+            ssCols = new double[nCols];
+            ssRows = new double[1024];
+            double[] row = new double[nCols];
+            while (stream.next(row)) {
+                if (nRows == ssRows.length)
+                    ssRows = Arrays.copyOf(ssRows, 2 * nRows);
+                for (int j = 0; j < nCols; j++) {
+                    double ss = row[j] * row[j];
+                    ssA += ss;
+                    ssCols[j] += ss;
+                    ssRows[nRows] += ss;
+                }
+                nRows++;
+            }
+        } else {
+            ssCols = new double[nCols];
+            ssRows = new double[nRows];
+            for (int i = 0; i < nRows; i++) {
+                for (int j = 0; j < nCols; j++) {
+                    double ss = A[i][j] * A[i][j];
+                    ssA += ss;
+                    ssCols[j] += ss;
+                    ssRows[i] += ss;
+                }
+            }
+        }
+
         // Get dimensions for row and columns
         int m = nRows;
         int n = nCols;
@@ -84,19 +175,6 @@ public class CURSketcher {
             return;
         }
 
-        // Compute row and column norms.
-        double ssA = 0.;
-        double[] ssCols = new double[n];
-        double[] ssRows = new double[m];
-        for (int i = 0; i < m; i++) {
-            for (int j = 0; j < n; j++) {
-                double ss = A[i][j] * A[i][j];
-                ssA += ss;
-                ssCols[j] += ss;
-                ssRows[i] += ss;
-            }
-        }
-
         // probabilities of choosing a row/column are proportional to the row/column norms.
         double[] p = new double[m];
         double[] q = new double[n];
@@ -105,64 +183,94 @@ public class CURSketcher {
         for (int j = 0; j < n; j++)
             q[j] = ssCols[j] / ssA;
 
+        if (sampling.equalsIgnoreCase("leverage")) {
+            if (streaming)
+                System.out.println("Leverage scores need the data in memory; sampling by norms");
+            else
+                leverageScores(p, q);
+        }
+
         // Pick random rows and columns according to probabilities p[.] or q[.], avoiding repetitions.
         colPicks = sample(q, c);
         rowPicks = sample(p, r);
 
-        double[][] C = new double[m][c];
-        for (int t = 0; t < c; t++) {
-            int jt = colPicks[t];
-            for (int i = 0; i < r; i++) {
-                C[i][t] = A[i][jt] / Math.sqrt(c * q[jt]);
+        // Copy out the picked columns, scaled, and the picked rows, on a second pass when streaming.
+        C = new double[m][c];
+        rows = new double[r][];
+        if (streaming) {
+            int[] slots = new int[m];
+            Arrays.fill(slots, -1);
+            for (int t = 0; t < r; t++)
+                slots[rowPicks[t]] = t;
+            stream = stream.reopen();
+            double[] row = new double[n];
+            for (int i = 0; stream.next(row); i++) {
+                for (int t = 0; t < c; t++) {
+                    int jt = colPicks[t];
+                    C[i][t] = row[jt] / columnScale(q[jt]);
+                }
+                if (slots[i] >= 0)
+                    rows[slots[i]] = row.clone();
+            }
+        } else {
+            for (int t = 0; t < c; t++) {
+                int jt = colPicks[t];
+                for (int i = 0; i < m; i++) {
+                    C[i][t] = A[i][jt] / columnScale(q[jt]);
+                }
             }
+            for (int t = 0; t < r; t++)
+                rows[t] = A[rowPicks[t]];
         }
 
-        double[][] CC = new double[c][c];
-        for (int i = 0; i < c; i++) {
-            for (int j = 0; j < c; j++) {
-                for (int ij = 0; ij < c; ij++)
-                    CC[i][j] += C[i][ij] * C[ij][j];
+        // Right singular vectors V and squared singular values D of C, leading k only.
+        double[][] V = new double[c][k];
+        double[] D = new double[k];
+        if (svd.equalsIgnoreCase("randomized")) {
+            double[][] left = new double[m][k];
+            RandomizedSVD.compute(C, k, oversampling, powerIterations, random.nextLong(), left, V, D, nThreads);
+            for (int t = 0; t < k; t++)
+                D[t] *= D[t];
+        } else {
+            double[][] CC = Gemm.gram(C, nThreads);
+            double[][] left = new double[c][c];
+            double[][] right = new double[c][c];
+            double[] d = new double[c];
+            SVD.compute(CC, left, right, d);
+            for (int t = 0; t < k; t++) {
+                D[t] = d[t];
+                for (int j = 0; j < c; j++)
+                    V[j][t] = right[j][t];
             }
         }
-        double[][] U = new double[m][n];
-        double[][] V = new double[n][n];
-        double[] D = new double[n];
-        SVD svd = new SVD();
-        svd.compute(CC, U, V, D);
+        int rank = 0;
+        while (rank < k && D[rank] > 0)
+            rank++;
 
-        double[][] R = new double[r][c];
+        R = new double[r][n];
         double[][] PSI = new double[r][c];
         for (int t = 0; t < r; t++) {
             int it = rowPicks[t];
-            for (int j = 0; j < c; j++) {
-                R[t][j] = A[it][j] / Math.sqrt(r * p[it]);
-                PSI[t][j] = C[it][j] / Math.sqrt(r * p[it]);
-            }
+            for (int j = 0; j < n; j++)
+                R[t][j] = rows[t][j] / Math.sqrt(inclusion(r, p[it]));
+            for (int j = 0; j < c; j++)
+                PSI[t][j] = C[it][j] / Math.sqrt(inclusion(r, p[it]));
         }
 
-        if (D[k] <= 0) {
-            for (int j = k - 1; j > 0; j--) {
-                if (D[j] != 0) {
-                    k = j;
-                    break;
-                }
-            }
+        // Compute the CUR: U = PHI PSI', where PHI = W W' and column t of W is v_t / sqrt(D_t), t < rank.
+        double[][] W = new double[c][rank];
+        for (int j = 0; j < c; j++) {
+            for (int t = 0; t < rank; t++)
+                W[j][t] = V[j][t] / Math.sqrt(D[t]);
         }
-        // Compute the CUR.
-        double[][] PHI = new double[r][k];
-        for (int t = 0; t < k; t++) {
-            for (int j = 0; j < k; j++) {
-                PHI[t][j] = (V[j][t] * V[t][j]) / (D[t] * D[t]);
-            }
-        }
-        for (int i = 0; i < k; i++) {
-            for (int j = 0; j < k; j++) {
-                for (int ij = 0; ij < m; ij++)
-                    U[i][j] += PHI[i][ij] * PSI[ij][j];
-            }
+        double[][] PHI = Gemm.multiplyTransposed(W, W, nThreads);
+        U = Gemm.multiplyTransposed(PHI, PSI, nThreads);
+        if (streaming) {
+            System.out.println("Frobenius correlation needs the data in memory");
+        } else {
+            double r = computeFrobeniusCorrelation();
+            System.out.println("Frobenius correlation " + r);
         }
-        double r = computeFrobeniusCorrelation();
-        System.out.println("Frobenius correlation " + r);
 
         System.out.println("Columns picked ");
         for (int j = 0; j < colPicks.length; j++) {
@@ -176,84 +284,74 @@ public class CURSketcher {
         return;
     }
 
-    private double computeFrobeniusCorrelation() {
-        computeDistancesOnAllColumns();
-        computeDistancesOnSelectedColumns();
-        double r = frobenius(distancesBetweenRowsOnAllColumns, distancesBetweenRowsOnSelectedColumns);
-        return r;
+    private double columnScale(double probability) {
+        /* C is rescaled so that C C' estimates A A', except under leverage sampling, which only needs its span */
+        return sampling.equalsIgnoreCase("leverage") ? 1 : Math.sqrt(inclusion(c, probability));
     }
 
-    private void computeDistancesOnAllColumns() {
-        distancesBetweenRowsOnAllColumns = new double[nDistances];
-        for (int k = 0; k < nCols; k++) {
-            int ij = 0;
-            for (int i = 1; i < nRows; i++) {
-                double[] ri = new double[]{A[i][k]};
-                for (int j = 0; j < i; j++) {
-                    double[] rj = new double[]{A[j][k]};
-                    double distance = squaredDistance(ri, rj);
-                    if (!Double.isNaN(distance))
-                        distancesBetweenRowsOnAllColumns[ij] += distance;
-                    ij++;
-                }
-            }
-        }
+    private double inclusion(int picks, double probability) {
+        /*
+         * the expected number of times an index is picked, picks * probability, as norm sampling has always
+         * rescaled by it. Under leverage sampling it is capped at 1, the chance that an index is among picks
+         * drawn without replacement, so that rescaling does not shrink indices that are always picked; an index
+         * with no weight is only picked once every other one is, and keeps its scale
+         */
+        double inclusion = picks * probability;
+        if (!sampling.equalsIgnoreCase("leverage"))
+            return inclusion;
+        inclusion = Math.min(1, inclusion);
+        return inclusion > 0 ? inclusion : 1;
     }
 
-    private void computeDistancesOnSelectedColumns() {
-        /* all possible pairs of distinct rows */
-        /* this makes an enormous file, so it is not used as a default */
-        distancesBetweenRowsOnSelectedColumns = new double[nDistances];
-        int nSelected = colPicks.length;
-        double[] ri = new double[nSelected];
-        double[] rj = new double[nSelected];
-
-        int ij = 0;
-        for (int i = 1; i < nRows; i++) {
-            for (int k = 0; k < nSelected; k++) {
-                ri[k] = A[i][colPicks[k]];
-            }
-            for (int j = 0; j < i; j++) {
-                for (int k = 0; k < nSelected; k++) {
-                    ri[k] = A[i][colPicks[k]];
-                }
-                distancesBetweenRowsOnSelectedColumns[ij] = squaredDistance(ri, rj);
-                ij++;
-            }
+    private void leverageScores(double[] p, double[] q) {
+        /*
+         * replaces the norm probabilities by the leverage scores over the rank found, which sum to 1. Picked
+         * columns are not rescaled (see columnScale): the few columns with most of the leverage are always
+         * picked, and the rest would be scaled up by their tiny probabilities until they swamp C.
+         */
+        double[][] left = new double[A.length][k];
+        double[][] right = new double[nCols][k];
+        double[] d = new double[k];
+        int rank = RandomizedSVD.compute(A, k, oversampling, powerIterations, random.nextLong(), left, right, d,
+                nThreads);
+        if (rank == 0)
+            return;
+        for (int i = 0; i < nRows; i++) {
+            double leverage = 0;
+            for (int t = 0; t < rank; t++)
+                leverage += left[i][t] * left[i][t];
+            p[i] = leverage / rank;
+        }
+        for (int j = 0; j < nCols; j++) {
+            double leverage = 0;
+            for (int t = 0; t < rank; t++)
+                leverage += right[j][t] * right[j][t];
+            q[j] = leverage / rank;
         }
     }
 
-    private double squaredDistance(double[] e1, double[] e2) {
-        double sum = 0;
-        int n = 0;
-        for (int j = 0; j < e1.length; j++) {
-            double d1 = e1[j];
-            double d2 = e2[j];
-            if (!Double.isNaN(d1) && !Double.isNaN(d2)) {
-                sum += (d1 - d2) * (d1 - d2);
-                n++;
-            }
-        }
-        sum *= (double) e1.length / n;
-        return sum;
+    private double computeFrobeniusCorrelation() {
+        /* one column-major copy serves both, since other layouts are copied on every getColumns() */
+        double[][] columns = dataSource.getColumns();
+        computeDistancesOnAllColumns(columns);
+        computeDistancesOnSelectedColumns(columns);
+        double r = PairwiseStore.frobenius(distancesBetweenRowsOnAllColumns, distancesBetweenRowsOnSelectedColumns);
+        distancesBetweenRowsOnAllColumns.close();
+        distancesBetweenRowsOnSelectedColumns.close();
+        return r;
     }
 
-    private static double frobenius(double[] x, double[] y) {
-        if (x.length != y.length)
-            return Double.NaN;
-        double f = 0;
-        double x2 = 0;
-        double y2 = 0;
-        double xy = 0;
-        for (int i = 0; i < x.length; i++) {
-            x2 += x[i] * x[i];
-            y2 += y[i] * y[i];
-            xy += x[i] * y[i];
-        }
-        x2 = Math.sqrt(x2);
-        y2 = Math.sqrt(y2);
-        f = xy / (x2 * y2);
-        return f;
+    private void computeDistancesOnAllColumns(double[][] columns) {
+        distancesBetweenRowsOnAllColumns = new PairwiseStore(nRows, storage);
+        Distances.pairwiseSquaredDistances(columns, nRows, distancesBetweenRowsOnAllColumns);
+    }
+
+    private void computeDistancesOnSelectedColumns(double[][] columns) {
+        distancesBetweenRowsOnSelectedColumns = new PairwiseStore(nRows, storage);
+        double[][] selected = new double[colPicks.length][];
+        for (int k = 0; k < colPicks.length; k++)
+            selected[k] = columns[colPicks[k]];
+        Distances.pairwiseSquaredDistances(selected, nRows, distancesBetweenRowsOnSelectedColumns);
     }
 
     private void writeCURSketch() {
@@ -273,12 +371,11 @@ public class CURSketcher {
         }
 
         for (int i = 0; i < rowPicks.length; i++) {
-            int it = rowPicks[i];
             for (int j = 0; j < colPicks.length; j++) {
                 if (j < (colPicks.length - 1)) {
-                    writer.print(A[it][colPicks[j]] + ",");
+                    writer.print(rows[i][colPicks[j]] + ",");
                 } else {
-                    writer.println(A[it][colPicks[j]]);
+                    writer.println(rows[i][colPicks[j]]);
                 }
             }
         }
@@ -289,25 +386,77 @@ public class CURSketcher {
     }
 
     public int[] sample(double[] p, int ns) {
-        /* pick ns elements from integer list with probabilities p[i], i = 1, np without replacement */
-
-        int[] picks = new int[ns];
+        /*
+         * pick ns of the indices of p without replacement, each draw taking an index not yet picked with
+         * probability proportional to p[i]. Every index gets the key log(u) / p[i] for a uniform u, and the ns
+         * largest keys are kept in a min-heap (Efraimidis and Spirakis), in O(np log ns) time however skewed p
+         * is; picks come out in draw order. Indices with no weight are picked last, in index order.
+         */
         int np = p.length;
-        List<Integer> selected = new ArrayList<>();
-        while (selected.size() < ns) {
-            double r = random.nextDouble();
-            double b = 0;
-            for (int j = 0; j < np; j++) {
-                b += p[j];
-                if (b > r && !selected.contains(j)) {
-                    selected.add(new Integer(j));
-                    break;
-                }
+        ns = Math.min(ns, np);
+        double[] keys = new double[ns];
+        int[] items = new int[ns];
+        int size = 0;
+        for (int j = 0; j < np; j++) {
+            double u = 1 - random.nextDouble();
+            double key = p[j] > 0 ? Math.log(u) / p[j] : Double.NEGATIVE_INFINITY;
+            if (size < ns) {
+                keys[size] = key;
+                items[size] = j;
+                siftUp(keys, items, size++);
+            } else if (ns > 0 && key > keys[0]) {
+                keys[0] = key;
+                items[0] = j;
+                siftDown(keys, items, 0, ns);
             }
         }
-        for (int i = 0; i < ns; i++) {
-            picks[i] = selected.get(i);
+        int[] picks = new int[ns];
+        for (int t = ns - 1; t >= 0; t--) {
+            picks[t] = items[0];
+            keys[0] = keys[t];
+            items[0] = items[t];
+            siftDown(keys, items, 0, t);
         }
         return picks;
     }
+
+    private static void siftUp(double[] keys, int[] items, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!before(keys, items, i, parent))
+                return;
+            swap(keys, items, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(double[] keys, int[] items, int i, int size) {
+        while (true) {
+            int least = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && before(keys, items, left, least))
+                least = left;
+            if (right < size && before(keys, items, right, least))
+                least = right;
+            if (least == i)
+                return;
+            swap(keys, items, i, least);
+            i = least;
+        }
+    }
+
+    private static boolean before(double[] keys, int[] items, int a, int b) {
+        /* heap order: smaller keys first, and among equal keys the later index, which is dropped first */
+        return keys[a] < keys[b] || (keys[a] == keys[b] && items[a] > items[b]);
+    }
+
+    private static void swap(double[] keys, int[] items, int a, int b) {
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+    }
 }
@@ -16,30 +16,140 @@
 package com.h2o;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class ColumnSketcher {
 
     private int nRows, nCols;
     private int numberOfColumns;
-    private int nDistances;
-    private double[][] data;
+    private double[][] columns;
     private String[] colNames;
     private int[] colIndices;
-    private double[] distancesBetweenRowsOnAllColumns;
-    private double[] distancesBetweenRowsOnSelectedColumns;
-    private double[] distancesBetweenRowsOnSelectedColumn;
+    private PairwiseStore distancesBetweenRowsOnAllColumns;
+    private PairwiseStore distancesBetweenRowsOnSelectedColumns;
+    private double[][][] blocks;
+    private String storage = "heap";
     private DataSource dataSource;
+    private Matrix data;
+    private String engine = "moments";
+    private double[][] gram;
+    private double[] targetCross;
+    private double[] selectedCross;
+    private double targetNorm, selectedTarget, selectedNorm;
+    private SampledPairs sample;
+    private int initialPairs = 10000;
+    private int maxPairs = 1 << 20;
+    private double z = 1.96;
+    private double[] correlations;
+    private int nThreads = 1;
+    private boolean lazy;
+    private long evaluations, naiveEvaluations;
+    private boolean weighted;
+    private double[] weights;
+    private int frequencyColumn = -1;
+    private int reducedRows;
+    private double distortion = Double.NaN;
+    private static final double GAIN_SLACK = 1e-12;
+    private static final int GAIN_GREW = -2;
 
     public ColumnSketcher(String fileName, String normalize, int numberOfColumns) {
-        this.dataSource = new DataSource(fileName, normalize);
-        data = dataSource.getData();
+        /* columnar, since the column scores scan one column at a time */
+        this.dataSource = new DataSource(fileName, normalize, Precision.DOUBLE, "columns");
+        data = dataSource;
+        columns = dataSource.getColumns();
         colNames = dataSource.getColumnNames();
         this.nRows = dataSource.getNumRows();
         this.nCols = dataSource.getNumCols();
         this.numberOfColumns = numberOfColumns;
-        nDistances = this.nRows * (this.nRows - 1) / 2;
+    }
+
+    public void setEngine(String engine) {
+        /*
+         * "moments" (the default) scores columns from the moments of the data in O(nRows * nCols^2) time, see
+         * DistanceGram; "pairs" stores the squared distances of all pairs of rows, which is quadratic in rows;
+         * "sampled" estimates correlations on a random sample of pairs, see setSampling
+         */
+        this.engine = engine;
+    }
+
+    public void setSampling(int initialPairs, int maxPairs, double confidence) {
+        /*
+         * the "sampled" engine starts with initialPairs pairs of rows and doubles the sample, up to maxPairs,
+         * while the best candidate is not ahead of every other one at the given confidence level
+         */
+        this.initialPairs = initialPairs;
+        this.maxPairs = Math.max(initialPairs, maxPairs);
+        this.z = normalQuantile(0.5 + confidence / 2);
+    }
+
+    public void setStorage(String storage) {
+        /* where the "pairs" engine keeps its distances: "heap", or "mapped" for a memory-mapped temporary file */
+        this.storage = storage;
+    }
+
+    public void setThreads(int nThreads) {
+        /* scores the candidates of each greedy step on this many threads, each with its own block buffers */
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    public void setLazy(boolean lazy) {
+        /*
+         * lazy greedy selection (CELF): candidates wait in a queue ordered by the gain in correlation they had
+         * when last scored, and only the head is scored again until it is the first to have a current gain.
+         * This picks the same columns as the full greedy loop when gains can only shrink as columns are
+         * selected, but correlation gains need not shrink, so for them it is a heuristic: a column whose stale
+         * gain sits below the head may have grown without being scored again, and then the columns can differ
+         * from the full loop's without warning. Only a rescored gain that grew past its stale one is noticed;
+         * selection then starts again with the full greedy loop, which can cost more than running the full
+         * loop alone, and getSkippedEvaluations() turns negative. Exact engines only.
+         */
+        this.lazy = lazy;
+    }
+
+    public void setWeighted(boolean weighted) {
+        /*
+         * for row sketches: each row stands for as many rows as its "frequencies" value, so a pair of rows
+         * counts for the product of their frequencies, and the frequencies column is left out of the distances
+         */
+        this.weighted = weighted;
+    }
+
+    public void setRowReduction(int reducedRows) {
+        /*
+         * selects columns on a weighted sample of about this many rows instead of all of them, see RowSample,
+         * which cuts the quadratic work of the "pairs" and "sampled" engines; 0 (the default) keeps all rows.
+         * The "moments" engine is linear in the rows already, so it ignores this and uses all of them.
+         */
+        this.reducedRows = reducedRows;
+    }
+
+    public double getDistortion() {
+        /*
+         * how far row reduction moved the gram matrix of column distances that selection depends on: the
+         * Frobenius distance between the gram matrices of the sample and of a held-out sample of as many
+         * rows, each scaled to unit norm, so near 0 when little moved; NaN without reduction
+         */
+        return distortion;
+    }
+
+    public long getEvaluations() {
+        /* candidate scores computed by the last compute() */
+        return evaluations;
+    }
+
+    public long getSkippedEvaluations() {
+        /*
+         * scores the full greedy loop would have computed on top of getEvaluations(); negative when lazy
+         * selection had to fall back to the full loop
+         */
+        return naiveEvaluations - evaluations;
     }
 
     public int[] getColIndices() {
@@ -47,108 +157,467 @@ public class ColumnSketcher {
     }
 
     public void compute() {
-        computeDistancesOnAllColumns();
+        if (weighted)
+            readWeights();
+        if (reducedRows > 0 && reducedRows < nRows) {
+            if (usesMoments())
+                System.out.println("ColumnSketcher row reduction only helps the pairs and sampled engines; using all rows");
+            else
+                reduceRows();
+        }
+        if (usesPairs()) {
+            computeDistancesOnAllColumns();
+        } else if (usesSample()) {
+            sample = new SampledPairs(data, weights, frequencyColumn, 123);
+            sample.draw(initialPairs);
+        } else if (gram == null) {
+            computeGram();
+        }
         Set<Integer> selectedColumns = selectBestColumns();
 //        computeDistancesOnSelectedColumns(selectedColumns);
         writeColumnSketch(selectedColumns);
     }
 
-    private void computeDistancesOnAllColumns() {
-        distancesBetweenRowsOnAllColumns = new double[nDistances];
+    public double getCorrelation(int[] colIndices) {
+        /* Frobenius correlation on this data between distances on all columns and on the given columns */
+        if (weighted && weights == null)
+            readWeights();
+        if (gram == null)
+            computeGram();
+        double xy = 0;
+        double y2 = 0;
+        for (int k : colIndices) {
+            xy += targetCross[k];
+            for (int l : colIndices)
+                y2 += gram[k][l];
+        }
+        return xy / (Math.sqrt(targetNorm) * Math.sqrt(y2));
+    }
+
+    private void readWeights() {
+        frequencyColumn = -1;
+        for (int k = 0; k < nCols; k++) {
+            if (colNames[k].equals("frequencies"))
+                frequencyColumn = k;
+        }
+        if (frequencyColumn < 0)
+            throw new IllegalArgumentException("weighted column sketch needs a frequencies column");
+        double min = dataSource.minValues[frequencyColumn];
+        double max = dataSource.maxValues[frequencyColumn];
+        weights = new double[nRows];
+        for (int i = 0; i < nRows; i++) {
+            double w = columns[frequencyColumn][i];
+            if (dataSource.isNormalized())
+                w = max > min ? (max - min) * w + min : min;
+            weights[i] = w;
+        }
+    }
+
+    private void reduceRows() {
+        RowSample sample = new RowSample(columns, nRows, weights, frequencyColumn, reducedRows, 123);
+        RowSample heldOut = sample.heldOut(reducedRows, 321);
+        double[][] heldOutGram = DistanceGram.compute(heldOut, heldOut.getWeights());
+        data = sample;
+        columns = sample.getColumns();
+        weights = sample.getWeights();
+        computeGram();
+        double heldOutNorm = 0;
+        double norm = 0;
         for (int k = 0; k < nCols; k++) {
-            int ij = 0;
-            for (int i = 1; i < nRows; i++) {
-                double[] ri = new double[]{data[i][k]};
-                for (int j = 0; j < i; j++) {
-                    double[] rj = new double[]{data[j][k]};
-                    double distance = squaredDistance(ri, rj);
-                    if (!Double.isNaN(distance))
-                        distancesBetweenRowsOnAllColumns[ij] += distance;
-                    ij++;
+            for (int l = 0; l < nCols; l++) {
+                if (isTarget(k) && isTarget(l)) {
+                    heldOutNorm += heldOutGram[k][l] * heldOutGram[k][l];
+                    norm += gram[k][l] * gram[k][l];
                 }
             }
         }
+        double sum = 0;
+        for (int k = 0; k < nCols; k++) {
+            for (int l = 0; l < nCols; l++) {
+                if (isTarget(k) && isTarget(l)) {
+                    double d = gram[k][l] / Math.sqrt(norm) - heldOutGram[k][l] / Math.sqrt(heldOutNorm);
+                    sum += d * d;
+                }
+            }
+        }
+        distortion = Math.sqrt(sum);
+        System.out.println("ColumnSketcher reduced " + nRows + " rows to " + sample.getNumRows()
+                + " with distortion " + distortion);
+        nRows = sample.getNumRows();
+    }
+
+    private boolean isTarget(int column) {
+        /* whether column counts in the distances on all columns */
+        return column != frequencyColumn;
+    }
+
+    private void computeDistancesOnAllColumns() {
+        distancesBetweenRowsOnAllColumns = new PairwiseStore(nRows, storage);
+        List<double[]> targets = new ArrayList<>();
+        for (int k = 0; k < nCols; k++) {
+            if (isTarget(k))
+                targets.add(columns[k]);
+        }
+        Distances.pairwiseSquaredDistances(targets.toArray(new double[0][]), nRows, distancesBetweenRowsOnAllColumns);
+    }
+
+    private boolean usesPairs() {
+        return engine.equalsIgnoreCase("pairs");
+    }
+
+    private boolean usesMoments() {
+        return !usesPairs() && !usesSample();
+    }
+
+    private boolean usesSample() {
+        return engine.equalsIgnoreCase("sampled");
+    }
+
+    private void computeGram() {
+        /*
+         * the distances on a set of columns are sums of single column distances, so every inner product the
+         * greedy search needs is a sum of entries of the gram matrix
+         */
+        gram = DistanceGram.compute(data, weights);
+        targetCross = new double[nCols];
+        selectedCross = new double[nCols];
+        targetNorm = 0;
+        for (int k = 0; k < nCols; k++) {
+            for (int l = 0; l < nCols; l++) {
+                if (isTarget(l))
+                    targetCross[k] += gram[k][l];
+            }
+            if (isTarget(k))
+                targetNorm += targetCross[k];
+        }
+        selectedTarget = 0;
+        selectedNorm = 0;
     }
 
     private Set<Integer> selectBestColumns() {
         Set<Integer> selectedColumns = new TreeSet();
         int bestColumn = -1;
 
-        distancesBetweenRowsOnSelectedColumn = new double[nDistances];
-        distancesBetweenRowsOnSelectedColumns = new double[nDistances];
+        int nWorkers = usesMoments() ? 1 : Math.min(nThreads, nCols);
+        if (usesPairs()) {
+            blocks = new double[nWorkers][3][PairwiseStore.BLOCK];
+            for (int w = 0; w < nWorkers; w++)
+                Arrays.fill(blocks[w][2], 1);
+            distancesBetweenRowsOnSelectedColumns = new PairwiseStore(nRows, storage);
+        }
+        ForkJoinPool pool = nWorkers > 1 ? new ForkJoinPool(nWorkers) : null;
+        correlations = new double[nCols];
+        boolean[] candidates = new boolean[nCols];
+        evaluations = 0;
+        naiveEvaluations = 0;
+        final double[] gains = new double[nCols];
+        int[] scoredAt = new int[nCols];
+        PriorityQueue<Integer> queue = null;
+        if (lazy && !usesSample()) {
+            /* largest gain first, ties to the first column as in the full loop */
+            queue = new PriorityQueue<>(Math.max(1, nCols), (a, b) -> gains[a] != gains[b] ? Double.compare(gains[b], gains[a]) : a - b);
+            for (int k = 0; k < nCols; k++) {
+                if (!colNames[k].equals("frequencies")) {
+                    gains[k] = Double.POSITIVE_INFINITY;
+                    scoredAt[k] = -1;
+                    queue.add(k);
+                }
+            }
+        }
         double previousBestCorrelation = 0.0;
         for (int j = 0; j < nCols; j++) {
-            double bestCorrelation = Double.NEGATIVE_INFINITY;
-            for (int k = 0; k < nCols; k++) {
-                if (selectedColumns.contains(k) || colNames[j].equals("frequencies"))
+            double bestCorrelation;
+            boolean decided = true;
+            for (int k = 0; k < nCols; k++)
+                candidates[k] = !selectedColumns.contains(k) && !colNames[k].equals("frequencies");
+            if (queue != null) {
+                for (int k = 0; k < nCols; k++)
+                    naiveEvaluations += candidates[k] ? 1 : 0;
+                bestColumn = lazyBestColumn(queue, gains, scoredAt, j, previousBestCorrelation, pool, nWorkers);
+                if (bestColumn == GAIN_GREW) {
+                    System.out.println("ColumnSketcher a gain grew as columns were selected, so lazy selection "
+                            + "is unreliable on this data; selecting again with the full greedy loop");
+                    queue = null;
+                    naiveEvaluations = 0;
+                    selectedColumns.clear();
+                    clearSelection();
+                    previousBestCorrelation = 0.0;
+                    j = -1;
                     continue;
-                computeDistancesOnSelectedColumn(k);
-                double r = 0;
-                r = frobenius(distancesBetweenRowsOnAllColumns, distancesBetweenRowsOnSelectedColumn);
-                if (r > bestCorrelation) {
-                    bestColumn = k;
-                    bestCorrelation = r;
                 }
+                bestCorrelation = bestColumn < 0 ? Double.NEGATIVE_INFINITY : correlations[bestColumn];
+            } else while (true) {
+                scoreCandidates(candidates, pool, nWorkers);
+                for (int k = 0; k < nCols; k++)
+                    naiveEvaluations += candidates[k] ? 1 : 0;
+                /* reduced in column order, so ties go to the first column whatever the number of threads */
+                bestCorrelation = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < nCols; k++) {
+                    if (candidates[k] && correlations[k] > bestCorrelation) {
+                        bestColumn = k;
+                        bestCorrelation = correlations[k];
+                    }
+                }
+                /* a sampled choice stands once it is decided, or once the sample cannot grow */
+                if (!usesSample() || bestCorrelation == Double.NEGATIVE_INFINITY)
+                    break;
+                decided = isDecided(bestColumn, candidates);
+                if (decided || sample.size() >= maxPairs)
+                    break;
+                sample.draw(Math.min(sample.size(), maxPairs - sample.size()));
             }
             if (bestCorrelation < previousBestCorrelation || selectedColumns.size() >= numberOfColumns)
                 break;
-            System.out.println("best column " + j + " " + bestColumn + " " + colNames[bestColumn] + " " + bestCorrelation);
-            computeDistancesOnSelectedColumn(bestColumn);
-            System.arraycopy(distancesBetweenRowsOnSelectedColumn, 0, distancesBetweenRowsOnSelectedColumns, 0, nDistances);
+            if (usesSample()) {
+                double margin = z * sample.standardError(bestColumn);
+                System.out.println("best column " + j + " " + bestColumn + " " + colNames[bestColumn] + " " + bestCorrelation
+                        + " [" + (bestCorrelation - margin) + ", " + (bestCorrelation + margin) + "] from " + sample.size() + " pairs" + (decided ? "" : ", undecided"));
+            } else {
+                System.out.println("best column " + j + " " + bestColumn + " " + colNames[bestColumn] + " " + bestCorrelation);
+            }
+            addSelectedColumn(bestColumn);
             selectedColumns.add(bestColumn);
             previousBestCorrelation = bestCorrelation;
         }
+        if (pool != null)
+            pool.shutdown();
+        if (usesPairs()) {
+            distancesBetweenRowsOnAllColumns.close();
+            distancesBetweenRowsOnSelectedColumns.close();
+        }
+        if (getSkippedEvaluations() < 0)
+            System.out.println("ColumnSketcher scored " + evaluations + " candidates, " + -getSkippedEvaluations()
+                    + " more than the full greedy loop's " + naiveEvaluations);
+        else
+            System.out.println("ColumnSketcher scored " + evaluations + " candidates, skipping " + getSkippedEvaluations()
+                    + " of the full greedy loop's " + naiveEvaluations);
         return selectedColumns;
     }
 
-    private void computeDistancesOnSelectedColumn(int column) {
-        /* all possible pairs of distinct rows */
-        double[] ri = new double[1];
-        double[] rj = new double[1];
-        int ij = 0;
-        for (int i = 1; i < nRows; i++) {
-            ri[0] = data[i][column];
-            for (int j = 0; j < i; j++) {
-                rj[0] = data[j][column];
-                double distance = squaredDistance(ri, rj);
-                if (!Double.isNaN(distance))
-                    distancesBetweenRowsOnSelectedColumn[ij] = distance + distancesBetweenRowsOnSelectedColumns[ij];
-                ij++;
+    private int lazyBestColumn(PriorityQueue<Integer> queue, double[] gains, int[] scoredAt, int step,
+                               double previousBestCorrelation, ForkJoinPool pool, int nWorkers) {
+        /*
+         * scores the stale candidates at the head of the queue, nWorkers at a time, until the head was scored
+         * in this step; removes and returns it, -1 when no candidates are left, or GAIN_GREW when a rescored
+         * gain is larger than its stale gain
+         */
+        boolean[] batch = new boolean[nCols];
+        List<Integer> scored = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            if (scoredAt[queue.peek()] == step)
+                return queue.poll();
+            scored.clear();
+            while (scored.size() < nWorkers && !queue.isEmpty() && scoredAt[queue.peek()] != step) {
+                int k = queue.poll();
+                batch[k] = true;
+                scored.add(k);
+            }
+            scoreCandidates(batch, pool, nWorkers);
+            for (int k : scored) {
+                batch[k] = false;
+                double gain = correlations[k] - previousBestCorrelation;
+                gain = Double.isNaN(gain) ? Double.NEGATIVE_INFINITY : gain;
+                boolean grew = scoredAt[k] >= 0 && gain > gains[k] + GAIN_SLACK;
+                gains[k] = gain;
+                scoredAt[k] = step;
+                queue.add(k);
+                if (grew)
+                    return GAIN_GREW;
             }
         }
+        return -1;
     }
 
-    private double squaredDistance(double[] e1, double[] e2) {
-        double sum = 0;
-        int n = 0;
-        for (int j = 0; j < e1.length; j++) {
-            double d1 = e1[j];
-            double d2 = e2[j];
-            if (!Double.isNaN(d1) && !Double.isNaN(d2)) {
-                sum += (d1 - d2) * (d1 - d2);
-                n++;
-            }
+    private void scoreCandidates(boolean[] candidates, ForkJoinPool pool, int nWorkers) {
+        /*
+         * worker w scores every nWorkers-th candidate with its own scratch distances; with the "pairs" engine it
+         * scores all of them in one sweep over the pairs
+         */
+        for (int k = 0; k < nCols; k++)
+            evaluations += candidates[k] ? 1 : 0;
+        if (pool == null) {
+            scoreCandidates(candidates, 0, 1);
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int w = 0; w < nWorkers; w++) {
+            final int worker = w;
+            tasks.add(pool.submit(() -> scoreCandidates(candidates, worker, nWorkers)));
+        }
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    private void scoreCandidates(boolean[] candidates, int worker, int nWorkers) {
+        IntList columns = new IntList();
+        for (int k = worker; k < nCols; k += nWorkers) {
+            if (candidates[k])
+                columns.add(k);
+        }
+        if (usesPairs()) {
+            correlationsOnPairs(columns.toArray(), blocks[worker][0], blocks[worker][1], blocks[worker][2]);
+            return;
+        }
+        for (int c = 0; c < columns.size(); c++)
+            correlations[columns.get(c)] = correlation(columns.get(c));
+    }
+
+    private boolean isDecided(int bestColumn, boolean[] candidates) {
+        /* whether the best candidate leads every other candidate by more than the confidence margin */
+        for (int k = 0; k < nCols; k++) {
+            if (k == bestColumn || !candidates[k] || Double.isNaN(correlations[k]))
+                continue;
+            double difference = correlations[bestColumn] - correlations[k];
+            if (difference <= z * sample.differenceError(bestColumn, k))
+                return false;
+        }
+        return true;
+    }
+
+    private static double normalQuantile(double p) {
+        /* Acklam's rational approximation, relative error below 1.2e-9 */
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        if (p < 0.02425) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - 0.02425)
+            return -normalQuantile(1 - p);
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+
+    private double correlation(int column) {
+        /* Frobenius correlation between distances on all columns and on the selected columns plus this one */
+        if (usesSample())
+            return sample.correlation(column);
+        double xy = selectedTarget + targetCross[column];
+        double y2 = selectedNorm + 2 * selectedCross[column] + gram[column][column];
+        return xy / (Math.sqrt(targetNorm) * Math.sqrt(y2));
+    }
+
+    private void clearSelection() {
+        /* forgets the selected columns, as before the first step */
+        if (usesPairs()) {
+            distancesBetweenRowsOnSelectedColumns.close();
+            distancesBetweenRowsOnSelectedColumns = new PairwiseStore(nRows, storage);
+            return;
         }
-        sum *= (double) e1.length / n;
-        return sum;
+        selectedTarget = 0;
+        selectedNorm = 0;
+        Arrays.fill(selectedCross, 0);
     }
 
-    private static double frobenius(double[] x, double[] y) {
-        if (x.length != y.length)
-            return Double.NaN;
-        double f = 0;
+    private void addSelectedColumn(int column) {
+        if (usesSample()) {
+            sample.select(column);
+            return;
+        }
+        if (usesPairs()) {
+            addDistancesOnSelectedColumn(column, blocks[0][1]);
+            return;
+        }
+        selectedTarget += targetCross[column];
+        selectedNorm += 2 * selectedCross[column] + gram[column][column];
+        for (int k = 0; k < nCols; k++)
+            selectedCross[k] += gram[k][column];
+    }
+
+    private void correlationsOnPairs(int[] candidates, double[] all, double[] selected, double[] pairWeights) {
+        /*
+         * the Frobenius correlations of the distances on all columns with the distances on the selected columns
+         * plus each candidate, in one sweep over the pairs: every block of pairs is read once and then scanned
+         * for each candidate while it is in cache. Each candidate still sums its pairs in order, so the result
+         * matches scoring it alone. A missing value leaves the distance on the selected columns.
+         * Unweighted pairs weigh exactly 1, which leaves every product unchanged.
+         */
+        int n = candidates.length;
         double x2 = 0;
-        double y2 = 0;
-        double xy = 0;
-        for (int i = 0; i < x.length; i++) {
-            x2 += x[i] * x[i];
-            y2 += y[i] * y[i];
-            xy += x[i] * y[i];
+        double[] y2 = new double[n];
+        double[] xy = new double[n];
+        int i = 1;
+        int j = 0;
+        long size = distancesBetweenRowsOnAllColumns.size();
+        for (long from = 0; from < size; ) {
+            int length = distancesBetweenRowsOnAllColumns.blockLength(from);
+            distancesBetweenRowsOnAllColumns.read(from, all, length);
+            distancesBetweenRowsOnSelectedColumns.read(from, selected, length);
+            if (weights != null) {
+                int ii = i;
+                int jj = j;
+                for (int b = 0; b < length; b++) {
+                    pairWeights[b] = weights[ii] * weights[jj];
+                    if (++jj == ii) {
+                        jj = 0;
+                        ii++;
+                    }
+                }
+            }
+            for (int b = 0; b < length; b++)
+                x2 += pairWeights[b] * all[b] * all[b];
+            for (int c = 0; c < n; c++) {
+                double[] values = columns[candidates[c]];
+                double sy2 = y2[c];
+                double sxy = xy[c];
+                int ii = i;
+                int jj = j;
+                double xi = values[ii];
+                for (int b = 0; b < length; b++) {
+                    double d = xi - values[jj];
+                    double y = Double.isNaN(d) ? selected[b] : d * d + selected[b];
+                    sy2 += pairWeights[b] * y * y;
+                    sxy += pairWeights[b] * all[b] * y;
+                    if (++jj == ii) {
+                        jj = 0;
+                        if (++ii < nRows)
+                            xi = values[ii];
+                    }
+                }
+                y2[c] = sy2;
+                xy[c] = sxy;
+            }
+            /* the pair after this block */
+            from += length;
+            for (int remaining = length; remaining > 0; ) {
+                int step = Math.min(remaining, i - j);
+                j += step;
+                remaining -= step;
+                if (j == i) {
+                    i++;
+                    j = 0;
+                }
+            }
         }
-        x2 = Math.sqrt(x2);
-        y2 = Math.sqrt(y2);
-        f = xy / (x2 * y2);
-        return f;
+        for (int c = 0; c < n; c++)
+            correlations[candidates[c]] = xy[c] / (Math.sqrt(x2) * Math.sqrt(y2[c]));
+    }
+
+    private void addDistancesOnSelectedColumn(int column, double[] selected) {
+        double[] values = columns[column];
+        long from = 0;
+        int length = 0;
+        int b = 0;
+        for (int i = 1; i < nRows; i++) {
+            double xi = values[i];
+            for (int j = 0; j < i; j++) {
+                if (b == length) {
+                    distancesBetweenRowsOnSelectedColumns.write(from, selected, length);
+                    from += length;
+                    length = distancesBetweenRowsOnSelectedColumns.blockLength(from);
+                    distancesBetweenRowsOnSelectedColumns.read(from, selected, length);
+                    b = 0;
+                }
+                double d = xi - values[j];
+                if (!Double.isNaN(d))
+                    selected[b] += d * d;
+                b++;
+            }
+        }
+        distancesBetweenRowsOnSelectedColumns.write(from, selected, length);
     }
 
     private void writeColumnSketch(Set selectedColumns) {
@@ -171,13 +640,18 @@ public class ColumnSketcher {
                 writer.println(colNames[(Integer) s[j]]);
         }
 
-        for (int i = 0; i < nRows; i++) {
+        /* all rows, whatever rows the columns were selected on */
+        double[][] allColumns = dataSource.getColumns();
+        for (int i = 0; i < dataSource.getNumRows(); i++) {
             for (int j = 0; j < selectedColumns.size(); j++) {
-                data[i][j] = (dataSource.maxValues[j] - dataSource.minValues[j]) * data[i][(Integer) s[j]] + dataSource.minValues[(Integer) s[j]];
+                int column = (Integer) s[j];
+                double x = allColumns[column][i];
+                if (dataSource.isNormalized())
+                    x = (dataSource.maxValues[column] - dataSource.minValues[column]) * x + dataSource.minValues[column];
                 if (j < (selectedColumns.size() -1)) {
-                    writer.print(data[i][(Integer) s[j]] + ",");
+                    writer.print(x + ",");
                 } else {
-                    writer.println(data[i][(Integer) s[j]]);
+                    writer.println(x);
                 }
             }
         }
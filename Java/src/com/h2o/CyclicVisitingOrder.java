@@ -0,0 +1,53 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Random;
+
+public class CyclicVisitingOrder implements VisitingOrder {
+    /* exemplars in creation order, starting at a random one and wrapping around */
+    private Random random;
+    private IntList visiting;
+    private int size;
+    private int first;
+    private int k;
+
+    public CyclicVisitingOrder(Random random) {
+        this.random = random;
+    }
+
+    public void start(IntList candidates, int nExemplars) {
+        visiting = candidates;
+        size = candidates != null ? candidates.size() : nExemplars;
+        first = size > 0 ? random.nextInt(size) : 0;
+        k = 0;
+    }
+
+    public int next() {
+        if (k == size)
+            return -1;
+        int p = first + k++;
+        if (p >= size)
+            p -= size;
+        return visiting != null ? visiting.get(p) : p;
+    }
+
+    public void matched(int exemplar) {
+    }
+
+    public void added(int exemplar) {
+    }
+}
@@ -19,21 +19,44 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
-public class DataSource {
+public class DataSource implements Matrix {
     private int nRows;
     private int nCols;
     private double[][] data;
+    private double[][] columns;
+    private float[][] floatData;
+    private short[][] shortData;
+    private byte[][] byteData;
     private String[] columnNames;
     private String fileName;
     private String normalize;
+    private String precision;
+    private String layout;
     public double[] minValues;
     public double[] maxValues;
 
     public DataSource(String fileName, String normalize) {
+        this(fileName, normalize, Precision.DOUBLE);
+    }
+
+    public DataSource(String fileName, String normalize, String precision) {
+        this(fileName, normalize, precision, "rows");
+    }
+
+    public DataSource(String fileName, String normalize, String precision, String layout) {
         /* this code reads only classic, strict CSV files. Namely, comma separators and a header record with labels */
+        /* precision "float", "short" or "byte" keeps the data in a compact form; see Precision */
+        /* layout "rows" keeps an array per row, "columns" an array per column (full precision only) */
         this.fileName = fileName;
         this.normalize = normalize;
+        this.precision = precision;
+        this.layout = layout;
+        if (Precision.isQuantized(precision) && !isNormalized())
+            throw new IllegalArgumentException("quantized data must be normalized");
+        if (isColumnar() && !precision.equalsIgnoreCase(Precision.DOUBLE))
+            throw new IllegalArgumentException("columnar data must be full precision");
         try {
             readDataRecords();
 
@@ -51,14 +74,85 @@ public class DataSource {
         return nCols;
     }
 
+    public String getLayout() {
+        return layout;
+    }
+
+    public boolean isColumnar() {
+        return layout.equalsIgnoreCase("columns");
+    }
+
     public double[][] getData() {
-        return data;
+        /* rows; columnar or compact data is expanded into a new matrix on every call */
+        if (data != null)
+            return data;
+        double[][] expanded = new double[nRows][nCols];
+        for (int i = 0; i < nRows; i++)
+            getRow(i, expanded[i]);
+        return expanded;
+    }
+
+    public double[][] getColumns() {
+        /* columns, each nRows long; data in any other layout is copied into a new matrix on every call */
+        if (columns != null)
+            return columns;
+        double[][] copy = new double[nCols][nRows];
+        for (int j = 0; j < nCols; j++)
+            getColumn(j, copy[j]);
+        return copy;
+    }
+
+    public double get(int i, int j) {
+        if (data != null)
+            return data[i][j];
+        if (columns != null)
+            return columns[j][i];
+        if (floatData != null)
+            return floatData[i][j];
+        if (shortData != null)
+            return Precision.decodeShort(shortData[i][j]);
+        return Precision.decodeByte(byteData[i][j]);
+    }
+
+    public void getColumn(int j, double[] column) {
+        if (columns != null) {
+            System.arraycopy(columns[j], 0, column, 0, nRows);
+            return;
+        }
+        for (int i = 0; i < nRows; i++)
+            column[i] = get(i, j);
+    }
+
+    public void getRow(int i, double[] row) {
+        if (data != null) {
+            System.arraycopy(data[i], 0, row, 0, nCols);
+        } else if (columns != null) {
+            for (int j = 0; j < nCols; j++)
+                row[j] = columns[j][i];
+        } else if (floatData != null) {
+            for (int j = 0; j < nCols; j++)
+                row[j] = floatData[i][j];
+        } else if (shortData != null) {
+            for (int j = 0; j < nCols; j++)
+                row[j] = Precision.decodeShort(shortData[i][j]);
+        } else {
+            for (int j = 0; j < nCols; j++)
+                row[j] = Precision.decodeByte(byteData[i][j]);
+        }
+    }
+
+    public String getPrecision() {
+        return precision;
     }
 
     public String[] getColumnNames() {
         return columnNames;
     }
 
+    public boolean isNormalized() {
+        return normalize.equalsIgnoreCase("yes");
+    }
+
     private java.io.BufferedReader openDataFile() {
         java.io.BufferedReader bufferedReader = null;
         try {
@@ -90,13 +184,30 @@ public class DataSource {
 
         bufferedReader.readLine();
 
-        data = new double[nRows][nCols];
+        if (isColumnar())
+            columns = new double[nCols][nRows];
+        else if (precision.equalsIgnoreCase(Precision.DOUBLE))
+            data = new double[nRows][nCols];
         minValues = new double[nCols];
         maxValues = new double[nCols];
         for (int j = 0; j < nCols; j++) {
             minValues[j] = Double.POSITIVE_INFINITY;
             maxValues[j] = Double.NEGATIVE_INFINITY;
         }
+        if (Precision.isQuantized(precision)) {
+            /* levels are fixed on the normalized scale, so ranges have to be known before the first row is stored */
+            DataStream ranges = new DataStream(fileName, normalize);
+            ranges.close();
+            minValues = ranges.minValues;
+            maxValues = ranges.maxValues;
+            if (precision.equalsIgnoreCase(Precision.SHORT))
+                shortData = new short[nRows][];
+            else
+                byteData = new byte[nRows][];
+        } else if (data == null && columns == null) {
+            floatData = new float[nRows][];
+        }
+        double[] row = new double[nCols];
         for (int i = 0; i < nRows; i++) {
             record = bufferedReader.readLine();
             if (record == null) {
@@ -104,36 +215,84 @@ public class DataSource {
                 break;
             }
             String[] fields = getFields(record);
-            processRecord(fields, i);
+            processRecord(fields, i, row);
         }
         bufferedReader.close();
-        if (normalize.equalsIgnoreCase("yes"))
+        for (int j = 0; columns != null && j < nCols; j++) {
+            if (columns[j].length > nRows)
+                columns[j] = Arrays.copyOf(columns[j], nRows);
+        }
+        if (normalize.equalsIgnoreCase("yes") && !Precision.isQuantized(precision))
             normalize();
     }
 
-    private void processRecord(String[] fields, int row) {
-        for (int j = 0; j < nCols; j++) {
+    private void processRecord(String[] fields, int i, double[] row) {
+        if (data != null)
+            row = data[i];
+        parseFields(fields, row);
+        if (shortData != null) {
+            shortData[i] = new short[nCols];
+            for (int j = 0; j < nCols; j++)
+                shortData[i][j] = Precision.encodeShort((row[j] - minValues[j]) / (maxValues[j] - minValues[j]));
+            return;
+        }
+        if (byteData != null) {
+            byteData[i] = new byte[nCols];
+            for (int j = 0; j < nCols; j++)
+                byteData[i][j] = Precision.encodeByte((row[j] - minValues[j]) / (maxValues[j] - minValues[j]));
+            return;
+        }
+        updateRanges(row, minValues, maxValues);
+        if (columns != null) {
+            for (int j = 0; j < nCols; j++)
+                columns[j][i] = row[j];
+        }
+        if (floatData != null) {
+            floatData[i] = new float[nCols];
+            for (int j = 0; j < nCols; j++)
+                floatData[i][j] = (float) row[j];
+        }
+    }
+
+    static void parseFields(String[] fields, double[] row) {
+        for (int j = 0; j < row.length; j++) {
             try {
-                data[row][j] = Double.parseDouble(fields[j]);
-                if (!Double.isNaN(data[row][j])) {
-                    minValues[j] = Math.min(data[row][j], minValues[j]);
-                    maxValues[j] = Math.max(data[row][j], maxValues[j]);
-                }
+                row[j] = Double.parseDouble(fields[j]);
             } catch (NumberFormatException e) {
-                data[row][j] = Double.NaN;
+                row[j] = Double.NaN;
+            }
+        }
+    }
+
+    static void updateRanges(double[] row, double[] minValues, double[] maxValues) {
+        for (int j = 0; j < row.length; j++) {
+            if (!Double.isNaN(row[j])) {
+                minValues[j] = Math.min(row[j], minValues[j]);
+                maxValues[j] = Math.max(row[j], maxValues[j]);
             }
         }
     }
 
     private void normalize() {
+        if (columns != null) {
+            for (int j = 0; j < nCols; j++) {
+                double[] column = columns[j];
+                for (int i = 0; i < nRows; i++)
+                    column[i] = (column[i] - minValues[j]) / (maxValues[j] - minValues[j]);
+            }
+            return;
+        }
         for (int i = 0; i < nRows; i++) {
             for (int j = 0; j < nCols; j++) {
-                data[i][j] = (data[i][j] - minValues[j]) / (maxValues[j] - minValues[j]);
+                if (data != null)
+                    data[i][j] = (data[i][j] - minValues[j]) / (maxValues[j] - minValues[j]);
+                else
+                    floatData[i][j] = (float) ((floatData[i][j] - minValues[j]) / (maxValues[j] - minValues[j]));
             }
         }
     }
 
-    private String[] getFields(String record) {
+    static String[] getFields(String record) {
         if (record == null)
             return null;
         record = record.trim();
@@ -0,0 +1,148 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+public class DataStream {
+    /*
+     * reads the same strict CSV files as DataSource, but one row at a time, so memory does not grow with the
+     * number of rows. Normalizing needs the column ranges before the first row is returned, so in that case
+     * the file is read twice: once for the ranges and once for the rows.
+     */
+    private int nCols;
+    private String[] columnNames;
+    private String fileName;
+    private String normalize;
+    private BufferedReader bufferedReader;
+    public double[] minValues;
+    public double[] maxValues;
+
+    public DataStream(String fileName, String normalize) {
+        this.fileName = fileName;
+        this.normalize = normalize;
+        try {
+            bufferedReader = openDataFile();
+            columnNames = DataSource.getFields(bufferedReader.readLine());
+            nCols = columnNames.length;
+            minValues = new double[nCols];
+            maxValues = new double[nCols];
+            for (int j = 0; j < nCols; j++) {
+                minValues[j] = Double.POSITIVE_INFINITY;
+                maxValues[j] = Double.NEGATIVE_INFINITY;
+            }
+            if (isNormalized())
+                readRanges();
+        } catch (IOException ie) {
+            System.out.println("Error reading data file.");
+            System.exit(1);
+        }
+    }
+
+    public DataStream reopen() {
+        /* a new stream from the first row of the same file, normalized with the ranges already known */
+        DataStream stream = new DataStream(this);
+        stream.bufferedReader = openDataFile();
+        try {
+            stream.bufferedReader.readLine();
+        } catch (IOException ie) {
+            System.out.println("Error reading data file.");
+            System.exit(1);
+        }
+        return stream;
+    }
+
+    private DataStream(DataStream other) {
+        fileName = other.fileName;
+        normalize = other.normalize;
+        columnNames = other.columnNames;
+        nCols = other.nCols;
+        minValues = other.minValues.clone();
+        maxValues = other.maxValues.clone();
+    }
+
+    public int getNumCols() {
+        return nCols;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    public boolean isNormalized() {
+        return normalize.equalsIgnoreCase("yes");
+    }
+
+    public boolean next(double[] row) {
+        /* fills row with the next record, returns false after the last one */
+        String record;
+        try {
+            do {
+                record = bufferedReader.readLine();
+            } while (record != null && record.trim().isEmpty());
+        } catch (IOException ie) {
+            System.out.println("Error reading data file.");
+            System.exit(1);
+            return false;
+        }
+        if (record == null) {
+            close();
+            return false;
+        }
+        DataSource.parseFields(DataSource.getFields(record), row);
+        if (isNormalized()) {
+            for (int j = 0; j < nCols; j++)
+                row[j] = (row[j] - minValues[j]) / (maxValues[j] - minValues[j]);
+        } else {
+            DataSource.updateRanges(row, minValues, maxValues);
+        }
+        return true;
+    }
+
+    public void close() {
+        try {
+            bufferedReader.close();
+        } catch (IOException ie) {
+            System.out.println("Error closing data file.");
+        }
+    }
+
+    private BufferedReader openDataFile() {
+        BufferedReader bufferedReader = null;
+        try {
+            bufferedReader = new BufferedReader(new java.io.FileReader(fileName));
+        } catch (java.io.FileNotFoundException fe) {
+            System.out.println("Dataset file not found.");
+            System.exit(1);
+        }
+        return bufferedReader;
+    }
+
+    private void readRanges() throws IOException {
+        double[] row = new double[nCols];
+        String record;
+        while ((record = bufferedReader.readLine()) != null) {
+            if (record.trim().isEmpty())
+                continue;
+            DataSource.parseFields(DataSource.getFields(record), row);
+            DataSource.updateRanges(row, minValues, maxValues);
+        }
+        bufferedReader.close();
+        bufferedReader = openDataFile();
+        bufferedReader.readLine();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public class DistanceGram {
+    /*
+     * inner products between the vectors of squared distances of all pairs of rows on single columns,
+     * computed from moments instead of pairs. For columns a and b and rows present in both, centered on the
+     * column means,
+     *     sum over pairs i < j of (a_i - a_j)^2 (b_i - b_j)^2
+     *         = n S(a^2 b^2) - 2 S(a^2 b) S(b) - 2 S(a b^2) S(a) + S(a^2) S(b^2) + 2 S(a b)^2
+     * where S sums over those n rows. Pairs with a missing value contribute nothing, as in the pairwise sums.
+     * This takes O(nRows * nCols^2) time and O(nCols^2) memory instead of O(nRows^2).
+     */
+
+    public static double[][] compute(Matrix data) {
+        return compute(data, null);
+    }
+
+    public static double[][] compute(Matrix data, double[] weights) {
+        /*
+         * with weights, pair (i, j) counts weights[i] * weights[j] times, and S sums weighted values while n
+         * becomes the total weight; the identity is unchanged
+         */
+        int nRows = data.getNumRows();
+        int nCols = data.getNumCols();
+        double[] means = new double[nCols];
+        double[] present = new double[nCols];
+        double[] column = new double[nRows];
+        for (int k = 0; k < nCols; k++) {
+            data.getColumn(k, column);
+            for (int i = 0; i < nRows; i++) {
+                if (!Double.isNaN(column[i])) {
+                    double w = weights == null ? 1 : weights[i];
+                    means[k] += w * column[i];
+                    present[k] += w;
+                }
+            }
+        }
+        for (int k = 0; k < nCols; k++)
+            means[k] = present[k] > 0 ? means[k] / present[k] : 0;
+
+        /* moments over rows where both columns are present; only a <= b is filled */
+        double[][] n = new double[nCols][nCols];
+        double[][] sa = new double[nCols][nCols];
+        double[][] sb = new double[nCols][nCols];
+        double[][] saa = new double[nCols][nCols];
+        double[][] sbb = new double[nCols][nCols];
+        double[][] sab = new double[nCols][nCols];
+        double[][] saab = new double[nCols][nCols];
+        double[][] sabb = new double[nCols][nCols];
+        double[][] saabb = new double[nCols][nCols];
+        double[] x = new double[nCols];
+        for (int i = 0; i < nRows; i++) {
+            data.getRow(i, x);
+            for (int k = 0; k < nCols; k++)
+                x[k] -= means[k];
+            double w = weights == null ? 1 : weights[i];
+            for (int a = 0; a < nCols; a++) {
+                double xa = x[a];
+                if (Double.isNaN(xa))
+                    continue;
+                double xaa = xa * xa;
+                for (int b = a; b < nCols; b++) {
+                    double xb = x[b];
+                    if (Double.isNaN(xb))
+                        continue;
+                    double xbb = xb * xb;
+                    n[a][b] += w;
+                    sa[a][b] += w * xa;
+                    sb[a][b] += w * xb;
+                    saa[a][b] += w * xaa;
+                    sbb[a][b] += w * xbb;
+                    sab[a][b] += w * (xa * xb);
+                    saab[a][b] += w * (xaa * xb);
+                    sabb[a][b] += w * (xa * xbb);
+                    saabb[a][b] += w * (xaa * xbb);
+                }
+            }
+        }
+
+        double[][] gram = new double[nCols][nCols];
+        for (int a = 0; a < nCols; a++) {
+            for (int b = a; b < nCols; b++) {
+                double g = n[a][b] * saabb[a][b] - 2 * saab[a][b] * sb[a][b] - 2 * sabb[a][b] * sa[a][b]
+                        + saa[a][b] * sbb[a][b] + 2 * sab[a][b] * sab[a][b];
+                gram[a][b] = g;
+                gram[b][a] = g;
+            }
+        }
+        return gram;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+
+public class Distances {
+    /*
+     * NaN-aware squared Euclidean distances shared by the sketchers.
+     * A pair of values counts only when neither is missing, and the sum is scaled up by the fraction of
+     * counted pairs. Missing pairs are masked to zero instead of branched around, and the loops run in
+     * blocks of LANES so the JIT can unroll them; values are still summed in column order, so results
+     * match the plain loop exactly.
+     */
+    static final int LANES = 4;
+    static final int TILE_ROWS = 8;
+    static final int TILE_PAIRS = 1024;
+
+    private Distances() {
+    }
+
+    public static double squaredDistance(double[] e1, double[] e2) {
+        int nCols = e1.length;
+        double sum = 0;
+        int n = 0;
+        for (int j = 0; j < nCols; j++) {
+            double d1 = e1[j];
+            double d2 = e2[j];
+            boolean valid = d1 == d1 && d2 == d2; // false when either is NaN
+            double d = valid ? d1 - d2 : 0;
+            sum += d * d;
+            n += valid ? 1 : 0;
+        }
+        sum *= (double) nCols / n;
+        return sum;
+    }
+
+    public static double rowDistance(double[] exemplars, int offset, double[] row, double delta) {
+        /*
+         * distance between the exemplar starting at exemplars[offset] and row, for the ball test in RowSketcher.
+         * Returns a partial sum as soon as it exceeds delta, and NaN when fewer than half the columns count.
+         */
+        int nCols = row.length;
+        int blocked = nCols - nCols % LANES;
+        double sum = 0;
+        int n = 0;
+        int j = 0;
+        for (; j < blocked; j += LANES) {
+            for (int l = 0; l < LANES; l++) {
+                double d1 = exemplars[offset + j + l];
+                double d2 = row[j + l];
+                boolean valid = d1 == d1 && d2 == d2;
+                double d = valid ? d1 - d2 : 0;
+                sum += d * d;
+                n += valid ? 1 : 0;
+            }
+            if (sum > delta) // escape if distance is too large
+                return sum;
+        }
+        for (; j < nCols; j++) {
+            double d1 = exemplars[offset + j];
+            double d2 = row[j];
+            boolean valid = d1 == d1 && d2 == d2;
+            double d = valid ? d1 - d2 : 0;
+            sum += d * d;
+            n += valid ? 1 : 0;
+        }
+        if (sum > delta)
+            return sum;
+        sum *= (double) nCols / n;
+        if (n < (nCols / 2.0))
+            return Double.NaN;
+        return sum;
+    }
+
+    public static double[][] columnMajor(double[][] rows, int nRows, int nCols) {
+        /* the columns of the first nRows rows, each one contiguous */
+        double[][] columns = new double[nCols][nRows];
+        for (int i = 0; i < nRows; i++) {
+            for (int k = 0; k < nCols; k++)
+                columns[k][i] = rows[i][k];
+        }
+        return columns;
+    }
+
+    public static void pairwiseSquaredDistances(double[][] columns, int nRows, PairwiseStore distances) {
+        /*
+         * squared distances between all pairs of distinct rows, summed over the columns that are present in
+         * both rows, in the pair order of PairwiseStore. Pairs are computed in tiles of TILE_ROWS rows against
+         * up to TILE_PAIRS earlier rows: every column is swept across the tile while the tile stays in cache,
+         * and the inner loop runs along a contiguous column. Each pair still sums its columns in order.
+         */
+        double[] tile = new double[TILE_ROWS * TILE_PAIRS];
+        for (int i0 = 1; i0 < nRows; i0 += TILE_ROWS) {
+            int i1 = Math.min(i0 + TILE_ROWS, nRows);
+            for (int j0 = 0; j0 < i1 - 1; j0 += TILE_PAIRS) {
+                int j1 = Math.min(j0 + TILE_PAIRS, i1 - 1);
+                Arrays.fill(tile, 0);
+                for (double[] column : columns) {
+                    for (int i = i0; i < i1; i++) {
+                        double xi = column[i];
+                        int to = Math.min(j1, i);
+                        int t = (i - i0) * TILE_PAIRS - j0;
+                        for (int j = j0; j < to; j++) {
+                            double d = xi - column[j];
+                            d = d == d ? d : 0; // zero when either is NaN
+                            tile[t + j] += d * d;
+                        }
+                    }
+                }
+                for (int i = i0; i < i1; i++) {
+                    int to = Math.min(j1, i);
+                    if (to > j0)
+                        distances.write((long) i * (i - 1) / 2 + j0, tile, (i - i0) * TILE_PAIRS, to - j0);
+                }
+            }
+        }
+    }
+}
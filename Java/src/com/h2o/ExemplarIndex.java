@@ -0,0 +1,29 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public interface ExemplarIndex {
+    /*
+     * an exemplar index narrows down the exemplars a row has to be compared with.
+     * Candidates must include every exemplar lying within the radius of the row under the
+     * NaN-aware distance used by RowSketcher; extra candidates are allowed.
+     */
+
+    void add(int exemplar, double[] coordinates);
+
+    /* returns false when every exemplar is a candidate, otherwise fills candidates */
+    boolean candidates(double[] row, IntList candidates);
+}
@@ -0,0 +1,86 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+class ExemplarSearch {
+    /*
+     * the search for a close exemplar shared by RowSketcher and WindowedRowSketcher: an exemplar store, an
+     * index that narrows down the candidates for a row, and the order in which candidates are visited.
+     * The first exemplar within the radius wins, and foundDistance holds its squared distance to the row.
+     */
+    private ExemplarStore store;
+    private ExemplarIndex index;
+    private VisitingOrder order;
+    private IntList candidates = new IntList();
+    private double delta;
+    long distanceEvaluations;
+    double foundDistance;
+
+    ExemplarSearch(ExemplarStore store, ExemplarIndex index, VisitingOrder order, double radius) {
+        this.store = store;
+        this.index = index;
+        this.order = order;
+        this.delta = radius * radius; // because we are using squared Euclidean distances to save time
+    }
+
+    ExemplarStore getStore() {
+        return store;
+    }
+
+    double getDelta() {
+        return delta;
+    }
+
+    int find(double[] row, boolean[] skipped) {
+        /* visit candidate exemplars in order and stop at the first one near enough; skipped may be null */
+        boolean narrowed = index.candidates(row, candidates);
+        order.start(narrowed ? candidates : null, store.size());
+        for (int e = order.next(); e >= 0; e = order.next()) {
+            if (skipped != null && skipped[e])
+                continue;
+            distanceEvaluations++;
+            foundDistance = store.distanceBound(e, row, delta);
+            if (foundDistance < delta)
+                return e;
+        }
+        return -1;
+    }
+
+    int add(double[] row, int rowIndex) {
+        int exemplar = store.add(row, rowIndex);
+        index.add(exemplar, row);
+        order.added(exemplar);
+        return exemplar;
+    }
+
+    void matched(int exemplar) {
+        order.matched(exemplar);
+    }
+
+    void matched(int exemplar, int rows) {
+        order.matched(exemplar, rows);
+    }
+
+    void reindex(ExemplarIndex index) {
+        /* moves every exemplar to a new index, e.g. one on other grid columns */
+        this.index = index;
+        double[] e = new double[store.getNumCols()];
+        for (int k = 0; k < store.size(); k++) {
+            store.copyInto(k, e);
+            index.add(k, e);
+        }
+    }
+}
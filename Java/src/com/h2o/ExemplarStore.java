@@ -0,0 +1,275 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+
+public class ExemplarStore {
+    /*
+     * exemplars in flat primitive arrays, so adding rows does not allocate once capacity is reached.
+     * Exemplar e occupies coordinates[e * nCols] to coordinates[(e + 1) * nCols - 1].
+     * Members are appended as (exemplar, row) pairs and grouped by exemplar only when asked for,
+     * in compressed sparse row form: the rows of exemplar e are members[offsets[e]] to members[offsets[e + 1] - 1].
+     *
+     * With a compact precision (see Precision) the arena holds floats or quantized levels instead of doubles,
+     * which moves a half, a quarter or an eighth of the bytes. The exemplar is then the rounded row: distances
+     * are taken to its decoded coordinates, so every member is within the radius of the exemplar as stored and
+     * reported, though the row that created it may lie up to a rounding error away. When the data matrix is
+     * compact too (see DataSource), rows arrive already rounded to the same levels and the sketch is exact
+     * for the rounded data rather than for the file.
+     *
+     * The spread of an exemplar bounds the distance from it to any of its members, and an exemplar is
+     * incomplete when one of its members has missing values; RowSketch.merge needs both.
+     */
+    private int nCols;
+    private int size;
+    private double[] coordinates;
+    private String precision;
+    private float[] floatCoordinates;
+    private short[] shortCoordinates;
+    private byte[] byteCoordinates;
+    private double[] decoded;
+    private int[] rowIndices;
+    private int[] counts;
+    private double[] spreads;
+    private boolean[] incomplete;
+    private boolean keepMembers;
+    private IntList memberExemplars;
+    private IntList memberRows;
+
+    public ExemplarStore(int nCols, int expectedRows, boolean keepMembers) {
+        this(nCols, expectedRows, keepMembers, Precision.DOUBLE);
+    }
+
+    public ExemplarStore(int nCols, int expectedRows, boolean keepMembers, String precision) {
+        this.nCols = nCols;
+        this.precision = precision;
+        int capacity = 16;
+        if (precision.equalsIgnoreCase(Precision.FLOAT))
+            floatCoordinates = new float[capacity * nCols];
+        else if (precision.equalsIgnoreCase(Precision.SHORT))
+            shortCoordinates = new short[capacity * nCols];
+        else if (precision.equalsIgnoreCase(Precision.BYTE))
+            byteCoordinates = new byte[capacity * nCols];
+        else
+            coordinates = new double[capacity * nCols];
+        if (coordinates == null)
+            decoded = new double[nCols];
+        rowIndices = new int[capacity];
+        counts = new int[capacity];
+        spreads = new double[capacity];
+        incomplete = new boolean[capacity];
+        this.keepMembers = keepMembers;
+        if (keepMembers) {
+            memberExemplars = new IntList(expectedRows);
+            memberRows = new IntList(expectedRows);
+        }
+    }
+
+    public static long bytesPerExemplar(int nCols, String precision, boolean keepMembers) {
+        /* coordinates, row index, count, spread and incomplete flag, and an offset when grouping members */
+        long width = 8;
+        if (precision.equalsIgnoreCase(Precision.FLOAT))
+            width = 4;
+        else if (precision.equalsIgnoreCase(Precision.SHORT))
+            width = 2;
+        else if (precision.equalsIgnoreCase(Precision.BYTE))
+            width = 1;
+        return nCols * width + 17 + (keepMembers ? 4 : 0);
+    }
+
+    public static long bytesPerMember() {
+        /* an (exemplar, row) pair, and the row again once members() groups them by exemplar */
+        return 12;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumCols() {
+        return nCols;
+    }
+
+    public boolean keepsMembers() {
+        return keepMembers;
+    }
+
+    public String getPrecision() {
+        return precision;
+    }
+
+    public int getRowIndex(int exemplar) {
+        return rowIndices[exemplar];
+    }
+
+    public int getCount(int exemplar) {
+        return counts[exemplar];
+    }
+
+    public double getSpread(int exemplar) {
+        return spreads[exemplar];
+    }
+
+    public boolean isIncomplete(int exemplar) {
+        return incomplete[exemplar];
+    }
+
+    public int add(double[] row, int rowIndex) {
+        if (size == rowIndices.length) {
+            int capacity = 2 * size;
+            if (coordinates != null)
+                coordinates = Arrays.copyOf(coordinates, capacity * nCols);
+            if (floatCoordinates != null)
+                floatCoordinates = Arrays.copyOf(floatCoordinates, capacity * nCols);
+            if (shortCoordinates != null)
+                shortCoordinates = Arrays.copyOf(shortCoordinates, capacity * nCols);
+            if (byteCoordinates != null)
+                byteCoordinates = Arrays.copyOf(byteCoordinates, capacity * nCols);
+            rowIndices = Arrays.copyOf(rowIndices, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            spreads = Arrays.copyOf(spreads, capacity);
+            incomplete = Arrays.copyOf(incomplete, capacity);
+        }
+        int offset = size * nCols;
+        for (int j = 0; j < nCols; j++) {
+            if (floatCoordinates != null)
+                floatCoordinates[offset + j] = (float) row[j];
+            else if (shortCoordinates != null)
+                shortCoordinates[offset + j] = Precision.encodeShort(row[j]);
+            else if (byteCoordinates != null)
+                byteCoordinates[offset + j] = Precision.encodeByte(row[j]);
+            else
+                coordinates[offset + j] = row[j];
+        }
+        rowIndices[size] = rowIndex;
+        counts[size] = 0;
+        spreads[size] = 0;
+        incomplete[size] = false;
+        return size++;
+    }
+
+    public boolean isWithin(int exemplar, double[] row, double delta) {
+        /* true when the NaN-aware squared distance between row and exemplar is less than delta */
+        return distanceBound(exemplar, row, delta) < delta;
+    }
+
+    public double distanceBound(int exemplar, double[] row, double delta) {
+        /*
+         * the squared distance between row and exemplar when it is less than delta, otherwise infinity.
+         * A compact exemplar is decoded into a scratch row first, so one kernel serves every precision.
+         */
+        double d;
+        if (coordinates != null) {
+            d = Distances.rowDistance(coordinates, exemplar * nCols, row, delta);
+        } else {
+            copyInto(exemplar, decoded);
+            d = Distances.rowDistance(decoded, 0, row, delta);
+        }
+        return d < delta ? d : Double.POSITIVE_INFINITY;
+    }
+
+    public void cover(int exemplar, double[] row, double squaredDistance) {
+        /* records that row, at most that far from exemplar, is one of its members */
+        spreads[exemplar] = Math.max(spreads[exemplar], Math.sqrt(squaredDistance));
+        for (int j = 0; j < nCols && !incomplete[exemplar]; j++)
+            incomplete[exemplar] = Double.isNaN(row[j]);
+    }
+
+    public void cover(int exemplar, double spread, boolean incompleteMembers) {
+        spreads[exemplar] = Math.max(spreads[exemplar], spread);
+        incomplete[exemplar] |= incompleteMembers;
+    }
+
+    public void addMember(int exemplar, int rowIndex) {
+        counts[exemplar]++;
+        if (keepMembers) {
+            memberExemplars.add(exemplar);
+            memberRows.add(rowIndex);
+        }
+    }
+
+    public double[] copyOf(int exemplar) {
+        double[] row = new double[nCols];
+        copyInto(exemplar, row);
+        return row;
+    }
+
+    public void copyInto(int exemplar, double[] row) {
+        /* the coordinates of exemplar, decoded when the arena is compact */
+        int offset = exemplar * nCols;
+        if (coordinates != null) {
+            System.arraycopy(coordinates, offset, row, 0, nCols);
+            return;
+        }
+        for (int j = 0; j < nCols; j++) {
+            if (floatCoordinates != null)
+                row[j] = floatCoordinates[offset + j];
+            else if (shortCoordinates != null)
+                row[j] = Precision.decodeShort(shortCoordinates[offset + j]);
+            else
+                row[j] = Precision.decodeByte(byteCoordinates[offset + j]);
+        }
+    }
+
+    public RowSketch toSketch(String[] colNames, double[] frequencies, boolean[] skipped, double radius, long seed,
+                              double[] minValues, double[] maxValues) {
+        /*
+         * the exemplars not skipped, with the given frequencies or, when those are null, their counts;
+         * minValues and maxValues are the ranges of normalized input, or null
+         */
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            if (skipped == null || !skipped[k])
+                n++;
+        }
+        double[][] e = new double[n][];
+        double[] kept = new double[n];
+        double[] keptSpreads = new double[n];
+        boolean[] keptIncomplete = new boolean[n];
+        int i = 0;
+        for (int k = 0; k < size; k++) {
+            if (skipped != null && skipped[k])
+                continue;
+            e[i] = copyOf(k);
+            kept[i] = frequencies == null ? counts[k] : frequencies[k];
+            keptSpreads[i] = spreads[k];
+            keptIncomplete[i] = incomplete[k];
+            i++;
+        }
+        return new RowSketch(colNames, e, kept, keptSpreads, keptIncomplete, radius, seed,
+                minValues == null ? null : minValues.clone(), maxValues == null ? null : maxValues.clone());
+    }
+
+    public int[] memberOffsets() {
+        int[] offsets = new int[size + 1];
+        for (int e = 0; e < size; e++)
+            offsets[e + 1] = offsets[e] + counts[e];
+        return offsets;
+    }
+
+    public int[] members() {
+        /* rows grouped by exemplar, in the order they were added; see memberOffsets() */
+        if (!keepMembers)
+            return null;
+        int[] offsets = memberOffsets();
+        int[] next = Arrays.copyOf(offsets, size);
+        int[] members = new int[memberRows.size()];
+        for (int m = 0; m < memberRows.size(); m++)
+            members[next[memberExemplars.get(m)]++] = memberRows.get(m);
+        return members;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+public class Gemm {
+    /*
+     * dense products of row-major double[][] matrices. Every product is reduced to C = A B', whose entries are
+     * dot products of rows, so both operands stream through memory in order. The rows of B are cut into
+     * panels of NC and the shared dimension into slices of KC, so that a panel slice stays in cache while
+     * every row of A passes over it, and inside a slice each 2 by 4 tile of C is summed in eight registers,
+     * loading 6 values for 8 multiply-adds. Row panels of C go to separate tasks on a fork-join pool, shared
+     * by all products so that repeated products, such as the power iterations of RandomizedSVD, do not start
+     * threads each time.
+     */
+    private static final int NC = 64;
+    private static final int KC = 256;
+    private static final int PANEL = 32;
+    private static ForkJoinPool pool;
+
+    public static double[][] multiply(double[][] a, double[][] b, int nThreads) {
+        /* a b, for a m by p and b p by n */
+        return multiplyTransposed(a, transpose(b), nThreads);
+    }
+
+    public static double[][] multiplyTransposed(double[][] a, double[][] b, int nThreads) {
+        /* a b', for a m by p and b n by p */
+        double[][] c = new double[a.length][b.length];
+        run(a, b, c, false, nThreads);
+        return c;
+    }
+
+    public static double[][] gram(double[][] a, int nThreads) {
+        /* a'a, for a m by p; only tiles on or above the diagonal are computed, then mirrored */
+        double[][] at = transpose(a);
+        int p = at.length;
+        double[][] c = new double[p][p];
+        run(at, at, c, true, nThreads);
+        for (int i = 0; i < p; i++) {
+            for (int j = i + 1; j < p; j++)
+                c[j][i] = c[i][j];
+        }
+        return c;
+    }
+
+    public static double[][] transpose(double[][] a) {
+        int m = a.length;
+        int n = m == 0 ? 0 : a[0].length;
+        double[][] t = new double[n][m];
+        for (int i = 0; i < m; i++) {
+            double[] ai = a[i];
+            for (int j = 0; j < n; j++)
+                t[j][i] = ai[j];
+        }
+        return t;
+    }
+
+    private static void run(double[][] a, double[][] b, double[][] c, boolean upper, int nThreads) {
+        int m = a.length;
+        int nPanels = (m + PANEL - 1) / PANEL;
+        int nWorkers = Math.min(Math.max(1, nThreads), nPanels);
+        if (nWorkers <= 1) {
+            multiplyRows(a, b, c, 0, m, upper);
+            return;
+        }
+        /* panels are dealt out in turn, so the short rows of a triangular gram are shared evenly */
+        ForkJoinPool pool = pool(nWorkers);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int w = 0; w < nWorkers; w++) {
+            final int worker = w;
+            tasks.add(pool.submit(() -> {
+                for (int panel = worker; panel < nPanels; panel += nWorkers) {
+                    int from = panel * PANEL;
+                    multiplyRows(a, b, c, from, Math.min(from + PANEL, m), upper);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    private static synchronized ForkJoinPool pool(int nWorkers) {
+        /*
+         * the shared pool, replaced by a larger one when a product asks for more workers; a replaced pool is
+         * not shut down, since another product may still be submitting to it, and its idle threads time out
+         */
+        if (pool == null || pool.getParallelism() < nWorkers)
+            pool = new ForkJoinPool(nWorkers);
+        return pool;
+    }
+
+    private static void multiplyRows(double[][] a, double[][] b, double[][] c, int rowFrom, int rowTo,
+                                     boolean upper) {
+        /* rows rowFrom to rowTo of c = a b', or with upper only the tiles reaching the diagonal or beyond */
+        int n = b.length;
+        int p = rowTo > rowFrom ? a[rowFrom].length : 0;
+        for (int j0 = 0; j0 < n; j0 += NC) {
+            int j1 = Math.min(j0 + NC, n);
+            for (int k0 = 0; k0 < p; k0 += KC) {
+                int k1 = Math.min(k0 + KC, p);
+                for (int i = rowFrom; i < rowTo; i += 2) {
+                    int jStart = upper ? Math.max(j0, i - i % 4) : j0;
+                    if (i + 1 < rowTo) {
+                        double[] a0 = a[i];
+                        double[] a1 = a[i + 1];
+                        double[] c0 = c[i];
+                        double[] c1 = c[i + 1];
+                        int j = jStart;
+                        for (; j + 3 < j1; j += 4) {
+                            double[] b0 = b[j];
+                            double[] b1 = b[j + 1];
+                            double[] b2 = b[j + 2];
+                            double[] b3 = b[j + 3];
+                            double s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+                            double s10 = 0, s11 = 0, s12 = 0, s13 = 0;
+                            for (int k = k0; k < k1; k++) {
+                                double x0 = a0[k];
+                                double x1 = a1[k];
+                                double y = b0[k];
+                                s00 += x0 * y;
+                                s10 += x1 * y;
+                                y = b1[k];
+                                s01 += x0 * y;
+                                s11 += x1 * y;
+                                y = b2[k];
+                                s02 += x0 * y;
+                                s12 += x1 * y;
+                                y = b3[k];
+                                s03 += x0 * y;
+                                s13 += x1 * y;
+                            }
+                            c0[j] += s00;
+                            c0[j + 1] += s01;
+                            c0[j + 2] += s02;
+                            c0[j + 3] += s03;
+                            c1[j] += s10;
+                            c1[j + 1] += s11;
+                            c1[j + 2] += s12;
+                            c1[j + 3] += s13;
+                        }
+                        for (; j < j1; j++) {
+                            double[] bj = b[j];
+                            double s0 = 0;
+                            double s1 = 0;
+                            for (int k = k0; k < k1; k++) {
+                                s0 += a0[k] * bj[k];
+                                s1 += a1[k] * bj[k];
+                            }
+                            c0[j] += s0;
+                            c1[j] += s1;
+                        }
+                    } else {
+                        double[] a0 = a[i];
+                        for (int j = jStart; j < j1; j++) {
+                            double[] bj = b[j];
+                            double s = 0;
+                            for (int k = k0; k < k1; k++)
+                                s += a0[k] * bj[k];
+                            c[i][j] += s;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public class GridExemplarIndex implements ExemplarIndex {
+    /*
+     * a uniform grid over a few columns, with cells as wide as the radius.
+     * The squared distance between two rows is at least the sum of squares over the indexed columns
+     * (missing values only scale it up), so any exemplar within the radius of a row lies in the row's
+     * own cell or in one of its neighbors along each indexed column.
+     * Exemplars with a missing value in an indexed column cannot be placed and are always candidates;
+     * rows with a missing value in an indexed column are compared with every exemplar.
+     */
+    private static final long MAX_CELL = (1L << 20) - 1;
+    private static final long MIN_CELL = -(1L << 20);
+    private static final long CELL_MASK = (1L << 21) - 1;
+
+    private int[] columns;
+    private double cellWidth;
+    private int[] cell;
+    private int[][] neighborOffsets;
+    private int ownCell;
+    private IntList unplaced = new IntList();
+
+    /* open addressing hash table from packed cell coordinates to the exemplars inside the cell */
+    private long[] keys = new long[64];
+    private IntList[] members = new IntList[64];
+    private int nCells;
+
+    public GridExemplarIndex(int[] columns, double radius) {
+        if (columns.length > 3)
+            throw new IllegalArgumentException("grid index supports at most 3 columns");
+        this.columns = columns;
+        this.cellWidth = radius;
+        cell = new int[columns.length];
+        int nNeighbors = (int) Math.pow(3, columns.length);
+        neighborOffsets = new int[nNeighbors][columns.length];
+        for (int n = 0; n < nNeighbors; n++) {
+            int code = n;
+            for (int d = 0; d < columns.length; d++) {
+                neighborOffsets[n][d] = code % 3 - 1;
+                code /= 3;
+            }
+        }
+        ownCell = (nNeighbors - 1) / 2; // all offsets zero
+    }
+
+    public static int[] widestColumns(double[] ranges, int nColumns) {
+        /* the columns with largest range give the most cells, so they prune best */
+        int nCols = ranges.length;
+        nColumns = Math.min(nColumns, nCols);
+        int[] widest = new int[nColumns];
+        boolean[] used = new boolean[nCols];
+        for (int k = 0; k < nColumns; k++) {
+            int best = -1;
+            for (int j = 0; j < nCols; j++) {
+                if (!used[j] && (best < 0 || ranges[j] > ranges[best]))
+                    best = j;
+            }
+            used[best] = true;
+            widest[k] = best;
+        }
+        return widest;
+    }
+
+    public void add(int exemplar, double[] coordinates) {
+        if (!locate(coordinates)) {
+            unplaced.add(exemplar);
+            return;
+        }
+        long key = key(ownCell);
+        int slot = slot(key);
+        if (members[slot] == null) {
+            keys[slot] = key;
+            members[slot] = new IntList(4);
+            nCells++;
+        }
+        members[slot].add(exemplar);
+        if (2 * nCells > keys.length)
+            rehash();
+    }
+
+    public boolean candidates(double[] row, IntList candidates) {
+        if (!locate(row))
+            return false;
+        candidates.clear();
+        for (int n = 0; n < neighborOffsets.length; n++) {
+            int slot = slot(key(n));
+            IntList cellMembers = members[slot];
+            if (cellMembers == null)
+                continue;
+            for (int i = 0; i < cellMembers.size(); i++)
+                candidates.add(cellMembers.get(i));
+        }
+        for (int i = 0; i < unplaced.size(); i++)
+            candidates.add(unplaced.get(i));
+        return true;
+    }
+
+    private boolean locate(double[] row) {
+        for (int d = 0; d < columns.length; d++) {
+            double x = row[columns[d]];
+            if (Double.isNaN(x))
+                return false;
+            cell[d] = (int) Math.max(MIN_CELL, Math.min(MAX_CELL, Math.floor(x / cellWidth)));
+        }
+        return true;
+    }
+
+    private long key(int neighbor) {
+        /* cells beyond the packable range are clamped onto the border cell, which only adds candidates */
+        long key = 0;
+        int[] offsets = neighborOffsets[neighbor];
+        for (int d = 0; d < cell.length; d++) {
+            long c = Math.max(MIN_CELL, Math.min(MAX_CELL, (long) cell[d] + offsets[d]));
+            key = (key << 21) | (c & CELL_MASK);
+        }
+        return key;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (members[slot] != null && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        IntList[] oldMembers = members;
+        keys = new long[2 * oldKeys.length];
+        members = new IntList[2 * oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldMembers[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                members[slot] = oldMembers[i];
+            }
+        }
+    }
+}
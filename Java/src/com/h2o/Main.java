@@ -44,7 +44,7 @@ public class Main {
         System.out.println("Normalize columns to [0, 1] interval? (\"yes\", \"no\")");
         String normalize = scanner.nextLine();
 
-        System.out.println("Enter type of sketch (row, col, rowcol, cur)");
+        System.out.println("Enter type of sketch (row, rowstream, rowtarget, rowwindow, rowdecay, col, rowcol, cur)");
         type = scanner.nextLine();
 
         if (type.equalsIgnoreCase("row")) {
@@ -61,6 +61,54 @@ public class Main {
             System.out.println("CPU time in milliseconds "+(ms2 - ms1));
         }
 
+        if (type.equalsIgnoreCase("rowstream")) {
+            System.out.println("Computing row sketch one row at a time ...");
+            System.out.println("Enter radius of enclosing balls (entering 0 means program will choose)");
+            radius = Double.parseDouble(scanner.nextLine());
+
+            System.out.println("Input file name is " + fileName);
+            System.out.println("Input radius is " + radius);
+            RowSketcher rs = new RowSketcher(new DataStream(fileName, normalize), radius);
+            int ms1 = (int) System.currentTimeMillis();
+            rs.compute();
+            int ms2 = (int) System.currentTimeMillis();
+            System.out.println("CPU time in milliseconds "+(ms2 - ms1));
+        }
+
+        if (type.equalsIgnoreCase("rowtarget")) {
+            System.out.println("Computing row sketch of a given size ...");
+            System.out.println("Enter largest number of exemplars desired");
+            int targetSize = Integer.parseInt(scanner.nextLine());
+
+            System.out.println("Input file name is " + fileName);
+            System.out.println("Largest number of exemplars desired is " + targetSize);
+            RowSketcher rs = new RowSketcher(fileName, normalize, 0);
+            rs.setTargetSize(targetSize);
+            int ms1 = (int) System.currentTimeMillis();
+            rs.compute();
+            int ms2 = (int) System.currentTimeMillis();
+            System.out.println("Chosen radius is " + rs.getRadius());
+            System.out.println("CPU time in milliseconds "+(ms2 - ms1));
+        }
+
+        if (type.equalsIgnoreCase("rowwindow") || type.equalsIgnoreCase("rowdecay")) {
+            boolean windowed = type.equalsIgnoreCase("rowwindow");
+            System.out.println("Computing row sketch of recent rows ...");
+            System.out.println("Enter radius of enclosing balls (entering 0 means program will choose)");
+            radius = Double.parseDouble(scanner.nextLine());
+            System.out.println(windowed ? "Enter number of rows in window" : "Enter half life in rows");
+            double span = Double.parseDouble(scanner.nextLine());
+
+            System.out.println("Input file name is " + fileName);
+            System.out.println("Input radius is " + radius);
+            WindowedRowSketcher ws = new WindowedRowSketcher(new DataStream(fileName, normalize), radius,
+                    windowed ? "window" : "decay", span);
+            int ms1 = (int) System.currentTimeMillis();
+            ws.compute();
+            int ms2 = (int) System.currentTimeMillis();
+            System.out.println("CPU time in milliseconds "+(ms2 - ms1));
+        }
+
         if (type.equalsIgnoreCase("col")) {
             System.out.println("Computing column sketch ...");
             System.out.println("Enter number of sketch columns desired");
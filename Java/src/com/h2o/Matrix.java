@@ -0,0 +1,33 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public interface Matrix {
+    /*
+     * read access to a data matrix whatever its layout; a row-major matrix copies rows cheaply and a
+     * column-major one copies columns cheaply, and single values are cheap in either
+     */
+
+    int getNumRows();
+
+    int getNumCols();
+
+    double get(int i, int j);
+
+    void getRow(int i, double[] row);
+
+    void getColumn(int j, double[] column);
+}
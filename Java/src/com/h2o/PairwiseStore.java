@@ -0,0 +1,188 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+public class PairwiseStore {
+    /*
+     * one value for each pair of distinct rows, nRows * (nRows - 1) / 2 of them, indexed by a long in the order
+     * (1, 0), (2, 0), (2, 1), (3, 0), ... Values are read and written in blocks of consecutive pairs.
+     * "heap" storage keeps them in chunks of on-heap arrays; "mapped" storage keeps them in a temporary file
+     * mapped into memory a chunk at a time, so the operating system pages them in and out and the number of
+     * pairs is bounded by disk space rather than by the heap. Chunks are mapped when first used and at most
+     * WINDOW of them stay mapped; the oldest is dropped to make room and is unmapped once it is collected.
+     * Reads and writes of different blocks may run concurrently.
+     */
+    public static final int BLOCK = 1 << 16;
+    private static final int CHUNK = 1 << 26; // values per chunk, a multiple of BLOCK
+    private static final int WINDOW = 4; // chunks mapped at once
+
+    private long size;
+    private double[][] arrays;
+    private DoubleBuffer[] buffers;
+    private ArrayDeque<Integer> mappedChunks;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    public PairwiseStore(int nRows, String storage) {
+        size = pairs(nRows);
+        int nChunks = (int) ((size + CHUNK - 1) / CHUNK);
+        if (storage.equalsIgnoreCase("mapped")) {
+            buffers = new DoubleBuffer[nChunks];
+            mappedChunks = new ArrayDeque<>();
+            try {
+                file = File.createTempFile("pairs", ".bin");
+                file.deleteOnExit();
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(8 * size);
+                channel = randomAccessFile.getChannel();
+            } catch (IOException ie) {
+                System.out.println("Unable to allocate pairwise distance file");
+                System.exit(1);
+            }
+        } else {
+            arrays = new double[nChunks][];
+            for (int c = 0; c < nChunks; c++)
+                arrays[c] = new double[(int) Math.min(CHUNK, size - (long) c * CHUNK)];
+        }
+    }
+
+    public static long pairs(int nRows) {
+        return (long) nRows * (nRows - 1) / 2;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int blockLength(long from) {
+        /* the length of the block starting at from */
+        return (int) Math.min(BLOCK, size - from);
+    }
+
+    public void read(long from, double[] block, int length) {
+        for (int done = 0; done < length; ) {
+            int c = (int) ((from + done) / CHUNK);
+            int offset = (int) ((from + done) % CHUNK);
+            int n = Math.min(length - done, CHUNK - offset);
+            if (arrays != null) {
+                System.arraycopy(arrays[c], offset, block, done, n);
+            } else {
+                DoubleBuffer buffer = buffer(c);
+                buffer.position(offset);
+                buffer.get(block, done, n);
+            }
+            done += n;
+        }
+    }
+
+    public void write(long from, double[] block, int length) {
+        write(from, block, 0, length);
+    }
+
+    public void write(long from, double[] block, int offset, int length) {
+        /* stores block[offset] to block[offset + length - 1] as the values of pairs from, from + 1, ... */
+        for (int done = 0; done < length; ) {
+            int c = (int) ((from + done) / CHUNK);
+            int position = (int) ((from + done) % CHUNK);
+            int n = Math.min(length - done, CHUNK - position);
+            if (arrays != null) {
+                System.arraycopy(block, offset + done, arrays[c], position, n);
+            } else {
+                DoubleBuffer buffer = buffer(c);
+                buffer.position(position);
+                buffer.put(block, offset + done, n);
+            }
+            done += n;
+        }
+    }
+
+    private synchronized DoubleBuffer buffer(int c) {
+        /*
+         * a view of chunk c of the mapped file, mapping it if it is not mapped already. A chunk dropped from the
+         * window stays valid for callers still holding a view of it, and writes through that view reach the file
+         */
+        if (buffers[c] == null) {
+            if (mappedChunks.size() == WINDOW)
+                buffers[mappedChunks.removeFirst()] = null;
+            long from = (long) c * CHUNK;
+            long length = Math.min(CHUNK, size - from);
+            try {
+                buffers[c] = channel.map(FileChannel.MapMode.READ_WRITE, 8 * from, 8 * length)
+                        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            } catch (IOException ie) {
+                System.out.println("Unable to map pairwise distance file");
+                System.exit(1);
+            }
+            mappedChunks.addLast(c);
+        }
+        return buffers[c].duplicate();
+    }
+
+    public void close() {
+        /*
+         * releases the storage; the mapped file is removed. Some systems refuse to delete a file while a mapping
+         * of it is still alive, and a dropped mapping is only unmapped when it is collected, so then the file is
+         * left to be removed when the program exits
+         */
+        arrays = null;
+        buffers = null;
+        mappedChunks = null;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ie) {
+                System.out.println("Unable to close pairwise distance file");
+            }
+            if (!file.delete()) {
+                System.out.println("Unable to delete pairwise distance file " + file + " now; it is removed on exit");
+                file.deleteOnExit();
+            }
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+
+    public static double frobenius(PairwiseStore x, PairwiseStore y) {
+        /* the Frobenius correlation of the values of two stores, read block by block */
+        if (x.size() != y.size())
+            return Double.NaN;
+        double[] xb = new double[BLOCK];
+        double[] yb = new double[BLOCK];
+        double x2 = 0;
+        double y2 = 0;
+        double xy = 0;
+        for (long from = 0; from < x.size(); from += BLOCK) {
+            int length = x.blockLength(from);
+            x.read(from, xb, length);
+            y.read(from, yb, length);
+            for (int i = 0; i < length; i++) {
+                x2 += xb[i] * xb[i];
+                y2 += yb[i] * yb[i];
+                xy += xb[i] * yb[i];
+            }
+        }
+        return xy / (Math.sqrt(x2) * Math.sqrt(y2));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+
+public class PopulousVisitingOrder implements VisitingOrder {
+    /*
+     * exemplars with the most members first, since a row is most likely to fall in a big ball.
+     * All exemplars are kept sorted by decreasing count; a match swaps the exemplar with the first one of
+     * its old count, which keeps the order sorted at the cost of a binary search. Several matches at once only
+     * raise the count, and the order is sorted again before it is next used.
+     * Counts are matches over the life of the order, so in WindowedRowSketcher an exemplar whose rows have left
+     * the window keeps its rank until the next rebuild, which starts a new order from the current weights.
+     */
+    private IntList order = new IntList();
+    private IntList position = new IntList();
+    private long[] counts = new long[16];
+    private IntList visiting;
+    private int k;
+    private int heapSize;
+    private boolean sorted = true;
+
+    public void start(IntList candidates, int nExemplars) {
+        visiting = candidates;
+        k = 0;
+        if (!sorted)
+            sort();
+        if (candidates != null) {
+            heapSize = candidates.size();
+            VisitingOrder.heapify(candidates, counts);
+        }
+    }
+
+    public int next() {
+        if (visiting == null)
+            return k < order.size() ? order.get(k++) : -1;
+        if (heapSize == 0)
+            return -1;
+        return VisitingOrder.takeLargest(visiting, heapSize--, counts);
+    }
+
+    public void matched(int exemplar) {
+        if (!sorted)
+            sort();
+        long count = counts[exemplar]++;
+        int p = position.get(exemplar);
+        int lo = 0;
+        int hi = p;
+        while (lo < hi) {
+            /* first position holding an exemplar with no more than the old count */
+            int mid = (lo + hi) >>> 1;
+            if (counts[order.get(mid)] > count)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int other = order.get(lo);
+        order.set(lo, exemplar);
+        order.set(p, other);
+        position.set(exemplar, lo);
+        position.set(other, p);
+    }
+
+    public void matched(int exemplar, int rows) {
+        counts[exemplar] += rows;
+        sorted = false;
+    }
+
+    public void added(int exemplar) {
+        /* the row that creates an exemplar is its first member, and no exemplar has fewer */
+        if (exemplar == counts.length)
+            counts = Arrays.copyOf(counts, 2 * exemplar);
+        counts[exemplar] = 1;
+        position.add(order.size());
+        order.add(exemplar);
+    }
+
+    private void sort() {
+        /* orders exemplars by decreasing count; ties keep their current order */
+        Integer[] exemplars = new Integer[order.size()];
+        for (int i = 0; i < exemplars.length; i++)
+            exemplars[i] = order.get(i);
+        Arrays.sort(exemplars, (a, b) -> Long.compare(counts[b], counts[a]));
+        for (int i = 0; i < exemplars.length; i++) {
+            order.set(i, exemplars[i]);
+            position.set(exemplars[i], i);
+        }
+        sorted = true;
+    }
+}
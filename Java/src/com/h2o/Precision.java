@@ -0,0 +1,62 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public class Precision {
+    /*
+     * compact encodings for values on the normalized [0, 1] scale.
+     * "double" and "float" store values as they are; "short" and "byte" round them to 65535 or 255 equally
+     * spaced levels, and keep the top code for missing values.
+     */
+    public static final String DOUBLE = "double";
+    public static final String FLOAT = "float";
+    public static final String SHORT = "short";
+    public static final String BYTE = "byte";
+
+    static final int SHORT_MISSING = 0xFFFF;
+    static final int BYTE_MISSING = 0xFF;
+    static final double SHORT_STEP = 1.0 / (SHORT_MISSING - 1);
+    static final double BYTE_STEP = 1.0 / (BYTE_MISSING - 1);
+
+    private Precision() {
+    }
+
+    public static boolean isQuantized(String precision) {
+        return precision.equalsIgnoreCase(SHORT) || precision.equalsIgnoreCase(BYTE);
+    }
+
+    static short encodeShort(double x) {
+        if (Double.isNaN(x))
+            return (short) SHORT_MISSING;
+        return (short) Math.round(Math.max(0, Math.min(1, x)) / SHORT_STEP);
+    }
+
+    static double decodeShort(short q) {
+        int code = q & 0xFFFF;
+        return code == SHORT_MISSING ? Double.NaN : code * SHORT_STEP;
+    }
+
+    static byte encodeByte(double x) {
+        if (Double.isNaN(x))
+            return (byte) BYTE_MISSING;
+        return (byte) Math.round(Math.max(0, Math.min(1, x)) / BYTE_STEP);
+    }
+
+    static double decodeByte(byte q) {
+        int code = q & 0xFF;
+        return code == BYTE_MISSING ? Double.NaN : code * BYTE_STEP;
+    }
+}
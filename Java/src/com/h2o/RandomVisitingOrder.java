@@ -0,0 +1,58 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Random;
+
+public class RandomVisitingOrder implements VisitingOrder {
+    /*
+     * uniformly random order, shuffled lazily: each step swaps a random remaining candidate into place,
+     * so a visit that stops early costs only the exemplars it looked at.
+     * All exemplars are kept in one permutation that later visits keep reshuffling.
+     */
+    private Random random;
+    private IntList permutation = new IntList();
+    private IntList visiting;
+    private int size;
+    private int k;
+
+    public RandomVisitingOrder(Random random) {
+        this.random = random;
+    }
+
+    public void start(IntList candidates, int nExemplars) {
+        visiting = candidates != null ? candidates : permutation;
+        size = visiting.size();
+        k = 0;
+    }
+
+    public int next() {
+        if (k == size)
+            return -1;
+        int j = k + random.nextInt(size - k);
+        int e = visiting.get(j);
+        visiting.set(j, visiting.get(k));
+        visiting.set(k++, e);
+        return e;
+    }
+
+    public void matched(int exemplar) {
+    }
+
+    public void added(int exemplar) {
+        permutation.add(exemplar);
+    }
+}
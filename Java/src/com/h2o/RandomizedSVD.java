@@ -0,0 +1,114 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Random;
+
+public class RandomizedSVD {
+    /*
+     * the k largest singular triplets of a, by the randomized range finder of Halko, Martinsson and Tropp
+     * (SIAM Review 53, 2011). The range of a is sketched by a times k + oversampling Gaussian vectors, refined
+     * by powerIterations passes through a' and a, which sharpen the gap between kept and dropped singular
+     * values, and then a is projected onto that range and the small projection is decomposed by SVD. The
+     * cost is O(m n (k + oversampling) (2 powerIterations + 1)) instead of the O(m n^2) of a full SVD.
+     */
+
+    public static int compute(double[][] a, int k, int oversampling, int powerIterations, long seed,
+                              double[][] u, double[][] v, double[] d) {
+        return compute(a, k, oversampling, powerIterations, seed, u, v, d, 1);
+    }
+
+    public static int compute(double[][] a, int k, int oversampling, int powerIterations, long seed,
+                              double[][] u, double[][] v, double[] d, int nThreads) {
+        /*
+         * a is m by n and unaltered; on output u (m by k) and v (n by k) hold the leading singular vectors
+         * in their columns and d the k singular values in descending order. Returns the rank within k.
+         * Products with a run on nThreads threads, see Gemm.
+         */
+        int m = a.length;
+        int n = a[0].length;
+        k = Math.min(k, Math.min(m, n));
+        int l = Math.min(k + Math.max(oversampling, 0), Math.min(m, n));
+
+        /* bases are kept as rows: qt is the transpose of an orthonormal basis of the range of a */
+        Random random = new Random(seed);
+        double[][] omega = new double[l][n];
+        for (int t = 0; t < l; t++) {
+            for (int j = 0; j < n; j++)
+                omega[t][j] = random.nextGaussian();
+        }
+        double[][] qt = Gemm.multiplyTransposed(omega, a, nThreads);
+        orthonormalize(qt);
+        for (int q = 0; q < powerIterations; q++) {
+            double[][] zt = Gemm.multiply(qt, a, nThreads);
+            orthonormalize(zt);
+            qt = Gemm.multiplyTransposed(zt, a, nThreads);
+            orthonormalize(qt);
+        }
+
+        /* b = q'a is l by n with l <= n, so decompose b' = ub db vb' and then a = q b = (q vb) db ub' */
+        double[][] bt = Gemm.transpose(Gemm.multiply(qt, a, nThreads));
+        double[][] ub = new double[n][l];
+        double[][] vb = new double[l][l];
+        double[] db = new double[l];
+        SVD.compute(bt, ub, vb, db);
+        double[][] left = Gemm.multiply(Gemm.transpose(qt), vb, nThreads);
+
+        int rank = 0;
+        for (int t = 0; t < k; t++) {
+            d[t] = db[t];
+            if (d[t] > 0)
+                rank++;
+            for (int j = 0; j < n; j++)
+                v[j][t] = ub[j][t];
+            for (int i = 0; i < m; i++)
+                u[i][t] = left[i][t];
+        }
+        return rank;
+    }
+
+    private static void orthonormalize(double[][] rows) {
+        /*
+         * modified Gram-Schmidt on the rows, run twice for orthogonality to machine precision; a row that
+         * vanishes against the rows before it becomes zero
+         */
+        for (int t = 0; t < rows.length; t++) {
+            double[] x = rows[t];
+            double before = norm(x);
+            for (int pass = 0; pass < 2; pass++) {
+                for (int s = 0; s < t; s++) {
+                    double[] y = rows[s];
+                    double dot = 0;
+                    for (int i = 0; i < x.length; i++)
+                        dot += x[i] * y[i];
+                    for (int i = 0; i < x.length; i++)
+                        x[i] -= dot * y[i];
+                }
+            }
+            double after = norm(x);
+            double scale = after > 1e-12 * before ? 1 / after : 0;
+            for (int i = 0; i < x.length; i++)
+                x[i] *= scale;
+        }
+    }
+
+    private static double norm(double[] x) {
+        double sum = 0;
+        for (double value : x)
+            sum += value * value;
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+
+public class RecentVisitingOrder implements VisitingOrder {
+    /*
+     * exemplars most recently matched (or created) first, which suits inputs where similar rows arrive together.
+     * All exemplars are kept in a doubly linked move-to-front list; explicit candidates are ordered by the
+     * time of their last match.
+     */
+    private IntList before = new IntList();
+    private IntList after = new IntList();
+    private int head = -1;
+    private long[] lastMatched = new long[16];
+    private long clock;
+    private IntList visiting;
+    private int current;
+    private int heapSize;
+
+    public void start(IntList candidates, int nExemplars) {
+        visiting = candidates;
+        current = head;
+        if (candidates != null) {
+            heapSize = candidates.size();
+            VisitingOrder.heapify(candidates, lastMatched);
+        }
+    }
+
+    public int next() {
+        if (visiting == null) {
+            int e = current;
+            if (e >= 0)
+                current = after.get(e);
+            return e;
+        }
+        if (heapSize == 0)
+            return -1;
+        return VisitingOrder.takeLargest(visiting, heapSize--, lastMatched);
+    }
+
+    public void matched(int exemplar) {
+        lastMatched[exemplar] = ++clock;
+        if (exemplar == head)
+            return;
+        int b = before.get(exemplar);
+        int a = after.get(exemplar);
+        after.set(b, a);
+        if (a >= 0)
+            before.set(a, b);
+        pushFront(exemplar);
+    }
+
+    public void added(int exemplar) {
+        if (exemplar == lastMatched.length)
+            lastMatched = Arrays.copyOf(lastMatched, 2 * exemplar);
+        lastMatched[exemplar] = ++clock;
+        before.add(-1);
+        after.add(-1);
+        pushFront(exemplar);
+    }
+
+    private void pushFront(int exemplar) {
+        before.set(exemplar, -1);
+        after.set(exemplar, head);
+        if (head >= 0)
+            before.set(head, exemplar);
+        head = exemplar;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Random;
+
+public class RowSample implements Matrix {
+    /*
+     * a weighted sample of the rows of a column-major matrix that keeps its pairwise distances in expectation.
+     * Rows are drawn with replacement with probability p proportional to their weight times their squared
+     * distance from the weighted mean plus the mean of those distances, since a pair can only be far apart
+     * if one of its rows is far from the mean, and the added mean keeps every row in reach. A row drawn c
+     * times weighs c * weight / (size * p), so pair (i, j) counts (size - 1) / size times its full weight in
+     * expectation, a common factor that leaves correlations unchanged.
+     */
+    private double[][] columns;
+    private double[] weights;
+    private int nRows, nCols;
+    private double[][] sourceColumns;
+    private double[] sourceWeights;
+    private int[] counts;
+
+    public RowSample(double[][] columns, int nRows, double[] weights, int ignoredColumn, int size, long seed) {
+        /* weights may be null for unit weights; ignoredColumn is left out of the distances from the mean */
+        nCols = columns.length;
+        double[] scores = new double[nRows];
+        for (int k = 0; k < nCols; k++) {
+            if (k == ignoredColumn)
+                continue;
+            double[] values = columns[k];
+            double sum = 0;
+            double present = 0;
+            for (int i = 0; i < nRows; i++) {
+                if (!Double.isNaN(values[i])) {
+                    double w = weights == null ? 1 : weights[i];
+                    sum += w * values[i];
+                    present += w;
+                }
+            }
+            double mean = present > 0 ? sum / present : 0;
+            for (int i = 0; i < nRows; i++) {
+                double d = values[i] - mean;
+                if (!Double.isNaN(d))
+                    scores[i] += d * d;
+            }
+        }
+        double total = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < nRows; i++) {
+            double w = weights == null ? 1 : weights[i];
+            total += w * scores[i];
+            totalWeight += w;
+        }
+        double floor = total > 0 ? total / totalWeight : 1;
+
+        double[] cumulative = new double[nRows];
+        double sum = 0;
+        for (int i = 0; i < nRows; i++) {
+            sum += (weights == null ? 1 : weights[i]) * (scores[i] + floor);
+            cumulative[i] = sum;
+        }
+        counts = new int[nRows];
+        Random random = new Random(seed);
+        for (int s = 0; s < size; s++)
+            counts[search(cumulative, random.nextDouble() * sum)]++;
+        double[] rowWeights = new double[nRows];
+        for (int i = 0; i < nRows; i++)
+            rowWeights[i] = counts[i] * sum / (size * (scores[i] + floor));
+        keep(columns, counts, rowWeights);
+        sourceColumns = columns;
+        sourceWeights = weights;
+    }
+
+    private RowSample(double[][] columns, int[] counts, double[] rowWeights) {
+        nCols = columns.length;
+        keep(columns, counts, rowWeights);
+    }
+
+    private void keep(double[][] columns, int[] counts, double[] rowWeights) {
+        /* the rows with a positive count, in their original order */
+        for (int count : counts) {
+            if (count > 0)
+                nRows++;
+        }
+        this.columns = new double[nCols][nRows];
+        this.weights = new double[nRows];
+        int r = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0)
+                continue;
+            for (int k = 0; k < nCols; k++)
+                this.columns[k][r] = columns[k][i];
+            this.weights[r] = rowWeights[i];
+            r++;
+        }
+    }
+
+    public RowSample heldOut(int size, long seed) {
+        /*
+         * a simple random sample of about size rows that were not drawn, with their original weights, on which
+         * the distances this sample keeps can be checked without another pass over all rows (Knuth's selection
+         * sampling). Uniform inclusion scales every pair alike, which correlations ignore.
+         */
+        int nSource = counts.length;
+        int available = 0;
+        for (int count : counts) {
+            if (count == 0)
+                available++;
+        }
+        size = Math.min(size, available);
+        int[] heldOut = new int[nSource];
+        double[] rowWeights = new double[nSource];
+        Random sampler = new Random(seed);
+        int selected = 0;
+        for (int i = 0; i < nSource && selected < size; i++) {
+            if (counts[i] > 0)
+                continue;
+            if (available * sampler.nextDouble() < size - selected) {
+                heldOut[i] = 1;
+                rowWeights[i] = sourceWeights == null ? 1 : sourceWeights[i];
+                selected++;
+            }
+            available--;
+        }
+        return new RowSample(sourceColumns, heldOut, rowWeights);
+    }
+
+    private static int search(double[] cumulative, double u) {
+        /* the first index whose cumulative weight exceeds u */
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > u)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    public double[][] getColumns() {
+        return columns;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    public int getNumRows() {
+        return nRows;
+    }
+
+    public int getNumCols() {
+        return nCols;
+    }
+
+    public double get(int i, int j) {
+        return columns[j][i];
+    }
+
+    public void getRow(int i, double[] row) {
+        for (int j = 0; j < nCols; j++)
+            row[j] = columns[j][i];
+    }
+
+    public void getColumn(int j, double[] column) {
+        System.arraycopy(columns[j], 0, column, 0, nRows);
+    }
+}
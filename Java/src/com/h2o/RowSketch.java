@@ -0,0 +1,325 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RowSketch {
+    /*
+     * the result of a row sketch: exemplar rows and the number of rows each one represents.
+     * Exemplars are kept on the scale the sketcher saw them; when the input was normalized,
+     * minValues and maxValues map them back to the original scale on output.
+     * Every row summarized by an exemplar lies within its spread, and so within the radius, of the exemplar;
+     * an exemplar is incomplete when some of those rows have missing values.
+     */
+    private static final int MAGIC = 0x524f5753; // "ROWS"
+    private static final int VERSION = 1;
+
+    private String[] colNames;
+    private double[][] exemplars;
+    private double[] frequencies;
+    private double[] spreads;
+    private boolean[] incomplete;
+    private double radius;
+    private long seed;
+    private double[] minValues;
+    private double[] maxValues;
+
+    public RowSketch(String[] colNames, double[][] exemplars, double[] frequencies, double[] spreads,
+                     boolean[] incomplete, double radius, long seed, double[] minValues, double[] maxValues) {
+        this.colNames = colNames;
+        this.exemplars = exemplars;
+        this.frequencies = frequencies;
+        this.spreads = spreads;
+        this.incomplete = incomplete;
+        this.radius = radius;
+        this.seed = seed;
+        this.minValues = minValues;
+        this.maxValues = maxValues;
+    }
+
+    public int getNumExemplars() {
+        return exemplars.length;
+    }
+
+    public double[][] getExemplars() {
+        return exemplars;
+    }
+
+    public double[] getFrequencies() {
+        return frequencies;
+    }
+
+    public double[] getSpreads() {
+        return spreads;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public static RowSketch merge(RowSketch a, RowSketch b) {
+        /*
+         * a sketch of the rows of both sketches, keeping the larger radius.
+         * Both are first mapped onto the union of their column ranges, which can only shrink distances.
+         * An exemplar of b is folded into an exemplar of a when its members stay within the radius by the
+         * triangle inequality: distance plus spread is less than the radius. Distances use the same NaN-aware
+         * rescaling as the sketcher, so an exemplar is only folded into one that is missing exactly the same
+         * columns: a column missing from one exemplar but not the other was never measured for the members.
+         * The triangle inequality then holds on the columns a member shares with both exemplars, at least half
+         * of all columns, and rescaling from those to all columns stretches the distance between the exemplars
+         * by at most sqrt(2), so it is weighted accordingly when exemplars or members have missing values.
+         * A column that is constant across both sketches maps to 0, as it would have been normalized.
+         * Total frequencies and the radius guarantee do not depend on the order of merges; the exemplars chosen may.
+         */
+        if (!Arrays.equals(a.colNames, b.colNames))
+            throw new IllegalArgumentException("sketches have different columns");
+        if ((a.minValues == null) != (b.minValues == null))
+            throw new IllegalArgumentException("cannot merge a normalized sketch with a sketch on the original scale");
+        int nCols = a.colNames.length;
+        double radius = Math.max(a.radius, b.radius);
+        double[] minValues = null;
+        double[] maxValues = null;
+        if (a.minValues != null) {
+            minValues = new double[nCols];
+            maxValues = new double[nCols];
+            for (int j = 0; j < nCols; j++) {
+                minValues[j] = Math.min(a.minValues[j], b.minValues[j]);
+                maxValues[j] = Math.max(a.maxValues[j], b.maxValues[j]);
+            }
+        }
+        double[][] ea = a.rescale(minValues, maxValues);
+        double[][] eb = b.rescale(minValues, maxValues);
+        double shrinkA = a.shrinkage(minValues, maxValues);
+        double shrinkB = b.shrinkage(minValues, maxValues);
+
+        List<double[]> exemplars = new ArrayList<>();
+        double[] frequencies = new double[ea.length + eb.length];
+        double[] spreads = new double[ea.length + eb.length];
+        boolean[] incomplete = new boolean[ea.length + eb.length];
+        double[] ranges = new double[nCols];
+        for (int j = 0; j < nCols; j++)
+            ranges[j] = minValues == null ? 0 : maxValues[j] > minValues[j] ? 1 : 0;
+        GridExemplarIndex index = new GridExemplarIndex(GridExemplarIndex.widestColumns(ranges, 3), radius);
+        for (int k = 0; k < ea.length; k++) {
+            int e = exemplars.size();
+            exemplars.add(ea[k]);
+            frequencies[e] = a.frequencies[k];
+            spreads[e] = shrinkA * a.spreads[k];
+            incomplete[e] = a.incomplete[k];
+            index.add(e, ea[k]);
+        }
+        IntList candidates = new IntList();
+        for (int k = 0; k < eb.length; k++) {
+            double spread = shrinkB * b.spreads[k];
+            boolean missing = b.incomplete[k] || hasMissing(eb[k]);
+            int best = -1;
+            double bestSpread = radius;
+            boolean narrowed = index.candidates(eb[k], candidates);
+            int nCandidates = narrowed ? candidates.size() : exemplars.size();
+            for (int c = 0; c < nCandidates; c++) {
+                int e = narrowed ? candidates.get(c) : c;
+                double[] exemplar = exemplars.get(e);
+                if (!sameMissing(exemplar, eb[k]))
+                    continue;
+                double weight = missing ? Math.sqrt(2) : 1;
+                double d = Distances.rowDistance(exemplar, 0, eb[k], radius * radius);
+                double reach = weight * Math.sqrt(d) + spread;
+                if (reach < bestSpread) {
+                    best = e;
+                    bestSpread = reach;
+                }
+            }
+            if (best >= 0) {
+                frequencies[best] += b.frequencies[k];
+                spreads[best] = Math.max(spreads[best], bestSpread);
+                incomplete[best] |= b.incomplete[k];
+            } else {
+                int e = exemplars.size();
+                exemplars.add(eb[k]);
+                frequencies[e] = b.frequencies[k];
+                spreads[e] = spread;
+                incomplete[e] = b.incomplete[k];
+                index.add(e, eb[k]);
+            }
+        }
+        int n = exemplars.size();
+        return new RowSketch(a.colNames, exemplars.toArray(new double[n][]), Arrays.copyOf(frequencies, n),
+                Arrays.copyOf(spreads, n), Arrays.copyOf(incomplete, n), radius, a.seed, minValues, maxValues);
+    }
+
+    private double[][] rescale(double[] unionMin, double[] unionMax) {
+        /* exemplars on the scale of the given ranges */
+        double[][] rescaled = new double[exemplars.length][];
+        for (int i = 0; i < exemplars.length; i++) {
+            rescaled[i] = exemplars[i].clone();
+            if (minValues == null)
+                continue;
+            for (int j = 0; j < rescaled[i].length; j++) {
+                /* a constant column normalizes to 0 / 0, and an empty one stays missing */
+                double x = maxValues[j] == minValues[j] ? minValues[j]
+                        : (maxValues[j] - minValues[j]) * exemplars[i][j] + minValues[j];
+                if (unionMax[j] > unionMin[j])
+                    rescaled[i][j] = (x - unionMin[j]) / (unionMax[j] - unionMin[j]);
+                else
+                    rescaled[i][j] = Double.isNaN(x) ? x : 0;
+            }
+        }
+        return rescaled;
+    }
+
+    private double shrinkage(double[] unionMin, double[] unionMax) {
+        /* the largest factor by which rescaling to the given ranges stretches a column; at most 1 */
+        if (minValues == null)
+            return 1;
+        double shrinkage = 0;
+        for (int j = 0; j < minValues.length; j++) {
+            if (unionMax[j] > unionMin[j] && maxValues[j] > minValues[j])
+                shrinkage = Math.max(shrinkage, (maxValues[j] - minValues[j]) / (unionMax[j] - unionMin[j]));
+        }
+        return shrinkage;
+    }
+
+    private static boolean sameMissing(double[] row1, double[] row2) {
+        for (int j = 0; j < row1.length; j++) {
+            if (Double.isNaN(row1[j]) != Double.isNaN(row2[j]))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hasMissing(double[] row) {
+        for (double x : row) {
+            if (Double.isNaN(x))
+                return true;
+        }
+        return false;
+    }
+
+    public void save(String fileName) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static RowSketch load(String fileName) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            return readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(colNames.length);
+        for (String name : colNames)
+            out.writeUTF(name);
+        out.writeInt(exemplars.length);
+        out.writeDouble(radius);
+        out.writeLong(seed);
+        out.writeBoolean(minValues != null);
+        if (minValues != null) {
+            for (int j = 0; j < colNames.length; j++) {
+                out.writeDouble(minValues[j]);
+                out.writeDouble(maxValues[j]);
+            }
+        }
+        for (int i = 0; i < exemplars.length; i++) {
+            for (int j = 0; j < colNames.length; j++)
+                out.writeDouble(exemplars[i][j]);
+            out.writeDouble(frequencies[i]);
+            out.writeDouble(spreads[i]);
+            out.writeBoolean(incomplete[i]);
+        }
+    }
+
+    public static RowSketch readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a row sketch");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported row sketch version " + version);
+        int nCols = in.readInt();
+        String[] colNames = new String[nCols];
+        for (int j = 0; j < nCols; j++)
+            colNames[j] = in.readUTF();
+        int n = in.readInt();
+        double radius = in.readDouble();
+        long seed = in.readLong();
+        double[] minValues = null;
+        double[] maxValues = null;
+        if (in.readBoolean()) {
+            minValues = new double[nCols];
+            maxValues = new double[nCols];
+            for (int j = 0; j < nCols; j++) {
+                minValues[j] = in.readDouble();
+                maxValues[j] = in.readDouble();
+            }
+        }
+        double[][] exemplars = new double[n][nCols];
+        double[] frequencies = new double[n];
+        double[] spreads = new double[n];
+        boolean[] incomplete = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < nCols; j++)
+                exemplars[i][j] = in.readDouble();
+            frequencies[i] = in.readDouble();
+            spreads[i] = in.readDouble();
+            incomplete[i] = in.readBoolean();
+        }
+        return new RowSketch(colNames, exemplars, frequencies, spreads, incomplete, radius, seed, minValues, maxValues);
+    }
+
+    public void write(String fileName) {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(fileName, "UTF-8");
+        } catch (Exception e) {
+            System.out.println("Unable to allocate row sketch file");
+            return;
+        }
+
+        /* write header */
+        for (int j = 0; j < colNames.length; j++) {
+            writer.print(colNames[j] + ",");
+        }
+        writer.println("frequencies");
+
+        for (int i = 0; i < exemplars.length; i++) {
+            for (int j = 0; j < colNames.length; j++) {
+                double x = exemplars[i][j];
+                if (minValues != null)
+                    x = (maxValues[j] - minValues[j]) * x + minValues[j];
+                writer.print(x + ",");
+            }
+            writer.println(frequencies[i]);
+        }
+        writer.close();
+    }
+}
@@ -16,44 +16,144 @@
 package com.h2o;
 
 
-import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class RowSketcher {
     private DataSource dataSource;
-    private double[][] data;
+    private DataStream dataStream;
     private String[] colNames;
     private int nRows, nCols;
-    private double delta;
-    private ArrayList<double[]> exemplars;
-    private ArrayList<Integer> exemplarIndices;
     private int[] rowIndices;
-    private ArrayList<ArrayList<Integer>> memberIndices;
     private double radius;
+    private String indexType = "linear";
+    private String visitingOrder = "random";
+    private String precision = Precision.DOUBLE;
+    private int[] gridColumns;
+    private int nShards = 1;
+    private boolean countsOnly;
+    private int targetSize;
+    private long memoryBudget;
+    private int nOffered;
+    private Partition sketch;
+    private static final int SEARCH_SAMPLE = 20000;
+    private static final int SEARCH_CANDIDATES = 8;
+    private static final int SEARCH_ROUNDS = 3;
+    private static final double MIN_COARSENING = 1.02;
     public static int seed = 4123;
     public static Random random = new Random(seed);
 
     public RowSketcher (String fileName, String normalize, double radius) {
-        this.dataSource = new DataSource(fileName, normalize);
+        this(fileName, normalize, radius, Precision.DOUBLE);
+    }
+
+    public RowSketcher (String fileName, String normalize, double radius, String precision) {
+        /* precision applies to both the data matrix and the exemplars, so the sketch covers the rounded rows; see setPrecision */
+        this.dataSource = new DataSource(fileName, normalize, precision);
         this.radius = radius;
-        data = dataSource.getData();
+        this.precision = precision;
         colNames = dataSource.getColumnNames();
         nRows = dataSource.getNumRows();
         nCols = dataSource.getNumCols();
     }
 
+    public RowSketcher (DataStream dataStream, double radius) {
+        /* one pass over the stream, keeping only exemplars and their counts */
+        this.dataStream = dataStream;
+        this.radius = radius;
+        colNames = dataStream.getColumnNames();
+        nCols = dataStream.getNumCols();
+    }
+
+    public void setIndexType(String indexType) {
+        /* "linear" compares each row with every exemplar, "grid" looks only in neighboring grid cells */
+        this.indexType = indexType;
+    }
+
+    public void setVisitingOrder(String visitingOrder) {
+        /* "random", "cyclic" (random start), "recent" (most recently matched first) or "populous" (largest first) */
+        this.visitingOrder = visitingOrder;
+    }
+
+    public void setPrecision(String precision) {
+        /*
+         * "float", "short" or "byte" stores exemplars rounded to that precision, and rows are compared with the
+         * rounded exemplars; quantized precisions need normalized input
+         */
+        this.precision = precision;
+    }
+
+    public void setTargetSize(int targetSize) {
+        /*
+         * choose the radius so the sketch has at most targetSize exemplars: the radius is searched on a sample of
+         * rows, and a full pass that overflows the target stops early and starts again with a coarser radius
+         */
+        this.targetSize = targetSize;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        /*
+         * a target size given as the bytes the sketch may take; the members kept for each row come out of the
+         * budget first, so the target depends on the shards and members settings when the sketch is computed
+         */
+        this.memoryBudget = bytes;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public void setShards(int nShards) {
+        /* more than one shard sketches contiguous blocks of rows in parallel and merges the results */
+        this.nShards = Math.max(1, Math.min(nShards, nRows));
+    }
+
+    public void setCountsOnly(boolean countsOnly) {
+        /* keep only the number of rows each exemplar represents, not which rows they are */
+        this.countsOnly = countsOnly;
+    }
+
+    public long getDistanceEvaluations() {
+        /* both counts are 0 before compute() or the first offered row */
+        return sketch != null ? sketch.search.distanceEvaluations : 0;
+    }
+
+    public long getRowsProcessed() {
+        return sketch != null ? sketch.rowsProcessed : 0;
+    }
+
+    public ExemplarStore getExemplarStore() {
+        return sketch.store;
+    }
+
     public List getMemberIndices() {
+        ExemplarStore store = sketch.store;
+        if (!store.keepsMembers())
+            return null;
+        int[] offsets = store.memberOffsets();
+        int[] members = store.members();
+        List<List<Integer>> memberIndices = new ArrayList<>();
+        for (int e = 0; e < store.size(); e++) {
+            List<Integer> member = new ArrayList<>();
+            for (int m = offsets[e]; m < offsets[e + 1]; m++)
+                member.add(members[m]);
+            memberIndices.add(member);
+        }
         return memberIndices;
     }
 
     public List getExemplars() {
+        List<double[]> exemplars = new ArrayList<>();
+        for (int e = 0; e < sketch.store.size(); e++)
+            exemplars.add(sketch.store.copyOf(e));
         return exemplars;
     }
 
     public int[] getRowIndices() {
-        rowIndices = new int[exemplarIndices.size()];
+        rowIndices = new int[sketch.store.size()];
         for (int i = 0; i < rowIndices.length; i++)
-            rowIndices[i] = exemplarIndices.get(i);
+            rowIndices[i] = sketch.store.getRowIndex(i);
         return rowIndices;
     }
 
@@ -61,115 +161,338 @@ public class RowSketcher {
         /*
          * an exemplar is a case that is used to represent its close members
          */
+        if (dataStream != null) {
+            double[] row = new double[nCols];
+            while (dataStream.next(row))
+                offer(row);
+        } else {
+            initialize();
+            int limit = targetSize > 0 ? targetSize : Integer.MAX_VALUE;
+            while (true) {
+                if (nShards > 1) {
+                    sketch = computeInParallel(limit);
+                } else {
+                    sketch = new Partition(radius, random, !countsOnly, nRows);
+                    sketch.addRows(0, nRows, limit);
+                }
+                int size = Math.max(sketch.store.size(), sketch.overflowSize);
+                if (size <= limit)
+                    break;
+                /*
+                 * ball counts grow like radius^-nCols at worst, and the count so far covers only part of the rows,
+                 * so all rows would need about size / fraction exemplars
+                 */
+                double fraction = (double) sketch.rowsProcessed / nRows;
+                radius *= Math.max(MIN_COARSENING, Math.pow(size / (fraction * limit), 1.0 / nCols));
+                System.out.println(size + " exemplars after " + sketch.rowsProcessed + " rows, more than " + limit + ", radius " + radius);
+            }
+        }
+        RowSketch result = snapshot();
+        result.write("rowsketch.csv");
+        System.out.println ("RowSketcher output file name is rowsketch.csv");
+        System.out.println ("RowSketcher output number of rows "+ result.getNumExemplars());
+        if (sketch != null && sketch.rowsProcessed > 0)
+            System.out.println ("RowSketcher distance evaluations per row "+ (double) sketch.search.distanceEvaluations / sketch.rowsProcessed);
+    }
+
+    public void offer(double[] row) {
+        /* adds the next row of a stream; the row is copied if it becomes an exemplar */
+        if (sketch == null) {
+            initialize();
+            sketch = new Partition(radius, random, false, 0);
+        }
+        sketch.addRow(nOffered++, row);
+        if (gridColumns != null && !dataStream.isNormalized() && Integer.bitCount(nOffered) == 1)
+            regrid();
+    }
+
+    private void regrid() {
+        /*
+         * a stream that is not normalized learns its column ranges as it goes, so the grid columns chosen at
+         * the first row are a guess; they are chosen again whenever the number of rows doubles
+         */
+        int[] widest = GridExemplarIndex.widestColumns(columnRanges(), 3);
+        if (Arrays.equals(widest, gridColumns))
+            return;
+        gridColumns = widest;
+        sketch.rebuildIndex();
+    }
+
+    public RowSketch snapshot() {
+        /* the exemplars and frequencies of the rows seen so far */
+        ExemplarStore store = sketch != null ? sketch.store : new ExemplarStore(nCols, 0, false, precision);
+        boolean normalized = dataStream != null ? dataStream.isNormalized() : dataSource.isNormalized();
+        double[] minValues = dataStream != null ? dataStream.minValues : dataSource.minValues;
+        double[] maxValues = dataStream != null ? dataStream.maxValues : dataSource.maxValues;
+        return store.toSketch(colNames, null, null, radius, seed, normalized ? minValues : null, normalized ? maxValues : null);
+    }
+
+    private void initialize() {
+        if (memoryBudget > 0)
+            targetSize = budgetTargetSize();
+        if (indexType.equalsIgnoreCase("grid"))
+            gridColumns = GridExemplarIndex.widestColumns(columnRanges(), 3);
+        if (targetSize > 0 && dataSource != null) {
+            radius = searchRadius();
+        } else if (radius <= 0) {
+            radius = defaultRadius(nCols);
+        }
+        System.out.println("radius " + radius);
+        boolean normalized = dataStream != null ? dataStream.isNormalized() : dataSource.isNormalized();
+        if (Precision.isQuantized(precision) && !normalized)
+            throw new IllegalArgumentException("quantized exemplars need normalized data");
+    }
 
-        exemplars = new ArrayList<>();
-        exemplarIndices = new ArrayList<>();
-        memberIndices = new ArrayList<>();
-        memberIndices.add(new ArrayList<>());
-        memberIndices.get(0).add(0);
+    private int budgetTargetSize() {
+        /*
+         * shards always keep their members until they are merged, and the merged sketch keeps them too
+         * unless only counts are wanted
+         */
+        boolean keepMembers = dataStream == null && !countsOnly;
+        long memberLists = dataStream == null ? (keepMembers ? 1 : 0) + (nShards > 1 ? 1 : 0) : 0;
+        long memberBytes = memberLists * nRows * ExemplarStore.bytesPerMember();
+        long exemplarBytes = ExemplarStore.bytesPerExemplar(nCols, precision, keepMembers || nShards > 1);
+        if (memberBytes >= memoryBudget) {
+            System.out.println("memory budget " + memoryBudget + " bytes does not cover the " + memberBytes + " bytes of members");
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (memoryBudget - memberBytes) / exemplarBytes));
+    }
 
-        if (radius <= 0) {
+    static double defaultRadius(int nCols) {
         /*
         See Doug Jungreis solution at
         https://mathoverflow.net/questions/308018/coverage-of-balls-on-random-points-in-euclidean-space?answertab=active#tab-top
         */
-            double rsquare = (nCols / 6.0) - 1.744 * Math.sqrt(7.0 * nCols / 180.0);
-            radius = .5 * Math.sqrt(rsquare);
-            if (Double.isNaN(radius))
-                radius = .5 / Math.pow(100, 1.0 / nCols);
+        double rsquare = (nCols / 6.0) - 1.744 * Math.sqrt(7.0 * nCols / 180.0);
+        double radius = .5 * Math.sqrt(rsquare);
+        if (Double.isNaN(radius))
+            radius = .5 / Math.pow(100, 1.0 / nCols);
+        return radius;
+    }
+
+    private double[] columnRanges() {
+        boolean normalized = dataStream != null ? dataStream.isNormalized() : dataSource.isNormalized();
+        double[] minValues = dataStream != null ? dataStream.minValues : dataSource.minValues;
+        double[] maxValues = dataStream != null ? dataStream.maxValues : dataSource.maxValues;
+        return columnRanges(normalized, minValues, maxValues);
+    }
+
+    static double[] columnRanges(boolean normalized, double[] minValues, double[] maxValues) {
+        /* column ranges on the scale the sketch sees; a stream may not know them yet */
+        int nCols = minValues.length;
+        double[] ranges = new double[nCols];
+        for (int j = 0; j < nCols; j++) {
+            if (maxValues[j] > minValues[j])
+                ranges[j] = normalized ? 1 : maxValues[j] - minValues[j];
         }
-        delta = radius * radius; // because we are using squared Euclidean distances to save time
-        System.out.println("radius " + radius);
+        return ranges;
+    }
 
-        for (int i = 0; i < nRows; i++) {
-            double[] row = new double[nCols];
-            System.arraycopy(data[i], 0, row, 0, nCols);
-            /* find closest exemplar and assign this row to it or start new exemplar */
-            double distanceToNearestExemplar = Double.POSITIVE_INFINITY;
-            int closestExemplarIndex = 0;
-            int numExemplars = exemplars.size();
-            List exemplarVisitingOrder = new ArrayList<>();
-            for (int k = 0; k < numExemplars; k++) {
-                exemplarVisitingOrder.add(new Integer(k));
+    private double searchRadius() {
+        /*
+         * sketch a sample of rows with several candidate radii at once, spaced geometrically between the
+         * diagonal of the data and a thousandth of it, and keep the smallest radius that meets the target.
+         * Each round narrows the search to the interval between the last radius that overflowed and that one.
+         */
+        int sampleSize = (int) Math.min(nRows, Math.max(SEARCH_SAMPLE, 10L * targetSize));
+        final int[] sample = sampleRows(sampleSize);
+        double diagonal = 0;
+        for (double range : columnRanges())
+            diagonal += range * range;
+        double hi = Math.sqrt(diagonal);
+        double lo = hi / 1000;
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (int round = 0; round < SEARCH_ROUNDS; round++) {
+            double[] radii = new double[SEARCH_CANDIDATES];
+            List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+            for (int c = 0; c < SEARCH_CANDIDATES; c++) {
+                final double candidate = lo * Math.pow(hi / lo, (c + 1.0) / SEARCH_CANDIDATES);
+                radii[c] = candidate;
+                tasks.add(pool.submit(() -> {
+                    Partition trial = new Partition(candidate, new Random(seed), false, 0);
+                    trial.addRows(sample, targetSize);
+                    return trial.store.size();
+                }));
             }
-            Collections.shuffle(exemplarVisitingOrder);
-            for (int k = 0; k < numExemplars; k++) {
-                Integer nextIndex = (Integer) exemplarVisitingOrder.get(k);
-                double[] e = exemplars.get(nextIndex);
-                double d = distance(e, row);
-                if (d < distanceToNearestExemplar) {
-                    distanceToNearestExemplar = d;
-                    closestExemplarIndex = nextIndex;
-                }
-                if (distanceToNearestExemplar < delta)  // near enough, so escape
+            double nextLo = lo;
+            for (int c = 0; c < SEARCH_CANDIDATES; c++) {
+                int size = tasks.get(c).join();
+                System.out.println("radius " + radii[c] + " gives " + size + " exemplars on " + sampleSize + " rows");
+                if (size <= targetSize) {
+                    hi = radii[c];
                     break;
+                }
+                nextLo = radii[c];
             }
-            if (distanceToNearestExemplar < delta) {
-                /* found a close exemplar, so add to cluster */
-                memberIndices.get(closestExemplarIndex).add(i);
-            } else {
-                /* otherwise, form a new exemplar */
-                exemplars.add(row);
-                exemplarIndices.add(i);
-                ArrayList<Integer> member = new ArrayList<>();
-                member.add(i);
-                memberIndices.add(member);
-            }
+            lo = nextLo;
         }
-        double[] frequencies = new double[exemplars.size()];
-        for (int j = 0; j < nCols; j++) {
-            double[] y = new double[exemplars.size()];
-            for (int i = 0; i < exemplars.size(); i++) {
-                y[i] = exemplars.get(i)[0];
-                frequencies[i] = memberIndices.get(i).size();
-            }
+        pool.shutdown();
+        return hi;
+    }
+
+    private int[] sampleRows(int sampleSize) {
+        /* a simple random sample of row indices, in file order (Knuth's selection sampling) */
+        int[] sample = new int[sampleSize];
+        int selected = 0;
+        Random sampler = new Random(seed);
+        for (int i = 0; i < nRows && selected < sampleSize; i++) {
+            if ((nRows - i) * sampler.nextDouble() < sampleSize - selected)
+                sample[selected++] = i;
         }
-        writeRowSketch(frequencies);
+        return sample;
     }
 
-    private double distance(double[] e1, double[] e2) {
-        double sum = 0;
-        int n = 0;
-        for (int j = 0; j < e1.length; j++) {
-            double d1 = e1[j];
-            double d2 = e2[j];
-            if (!Double.isNaN(d1) && !Double.isNaN(d2)) {
-                sum += (d1 - d2) * (d1 - d2);
-                n++;
+    private Partition computeInParallel(final int limit) {
+        /*
+         * sketch contiguous blocks of rows independently, then fold the shard sketches together in order.
+         * Once a shard or the merged sketch overflows the limit, the rest are not merged, but their rows still
+         * count as processed, since every shard ran over its own block.
+         */
+        ForkJoinPool pool = new ForkJoinPool(Math.min(nShards, Runtime.getRuntime().availableProcessors()));
+        List<ForkJoinTask<Partition>> tasks = new ArrayList<>();
+        for (int s = 0; s < nShards; s++) {
+            final int from = (int) ((long) nRows * s / nShards);
+            final int to = (int) ((long) nRows * (s + 1) / nShards);
+            final Random shardRandom = new Random(seed + s);
+            tasks.add(pool.submit(() -> {
+                Partition shard = new Partition(radius, shardRandom, true, to - from);
+                shard.addRows(from, to, limit);
+                return shard;
+            }));
+        }
+        Partition merged = new Partition(radius, random, !countsOnly, nRows);
+        long rowsProcessed = 0;
+        for (ForkJoinTask<Partition> task : tasks) {
+            Partition shard = task.join();
+            rowsProcessed += shard.rowsProcessed;
+            merged.search.distanceEvaluations += shard.search.distanceEvaluations;
+            if (merged.overflowSize > 0)
+                continue;
+            if (shard.store.size() > limit) {
+                /* one shard alone overflows, so the merged sketch would too */
+                merged.overflowSize = shard.store.size();
+                continue;
             }
-            if (sum > delta) // escape if distance is too large
-                return sum;
+            merged.addExemplars(shard);
+            if (merged.store.size() > limit)
+                merged.overflowSize = merged.store.size();
         }
-        sum *= (double) e1.length / n;
-        if (n < (e1.length / 2.0))
-            return Double.NaN;
-        return sum;
+        pool.shutdown();
+        merged.rowsProcessed = rowsProcessed;
+        return merged;
     }
 
-    private void writeRowSketch(double[] frequencies) {
-        PrintWriter writer = null;
-        try {
-            writer = new PrintWriter("rowsketch.csv", "UTF-8");
-        } catch (Exception e) {
-            System.out.println("Unable to allocate row sketch file");
+    private class Partition {
+        /* exemplars found so far, with the number of rows and optionally the rows each exemplar represents */
+        private double delta;
+        private double[] rowBuffer = new double[nCols];
+        private ExemplarStore store;
+        private ExemplarSearch search;
+        private long rowsProcessed;
+        private int overflowSize; // exemplars of the shard or merged sketch that went past the limit
+
+        private Partition(double radius, Random random, boolean keepMembers, int expectedRows) {
+            this.store = new ExemplarStore(nCols, expectedRows, keepMembers, precision);
+            this.search = new ExemplarSearch(store, createExemplarIndex(radius), createVisitingOrder(random), radius);
+            this.delta = search.getDelta();
         }
 
-        /* write header */
-        for (int j = 0; j < nCols; j++) {
-            writer.print(colNames[j]+",");
+        private void addRows(int from, int to, int limit) {
+            /* stops as soon as there are more than limit exemplars */
+            for (int i = from; i < to && store.size() <= limit; i++) {
+                dataSource.getRow(i, rowBuffer);
+                addRow(i, rowBuffer);
+            }
         }
-        writer.println("frequencies");
 
-        for (int i = 0; i < exemplars.size(); i++) {
-            int index = exemplarIndices.get(i);
-            for (int j = 0; j < nCols; j++) {
-                data[index][j] = (dataSource.maxValues[j] - dataSource.minValues[j]) * data[index][j] + dataSource.minValues[j];
-                writer.print(data[index][j] + ",");
+        private void addRows(int[] rows, int limit) {
+            for (int k = 0; k < rows.length && store.size() <= limit; k++) {
+                dataSource.getRow(rows[k], rowBuffer);
+                addRow(rows[k], rowBuffer);
             }
-            writer.println(frequencies[i]);
         }
-        writer.close();
-        System.out.println ("RowSketcher output file name is rowsketch.csv");
-        System.out.println ("RowSketcher output number of rows "+ exemplars.size());
+
+        private void addRow(int i, double[] row) {
+            /* assign this row to a close exemplar or start new exemplar */
+            rowsProcessed++;
+            int exemplar = search.find(row, null);
+            double distance = search.foundDistance;
+            if (exemplar < 0) {
+                exemplar = search.add(row, i);
+                distance = 0;
+            } else {
+                search.matched(exemplar);
+            }
+            store.addMember(exemplar, i);
+            store.cover(exemplar, row, distance);
+        }
+
+        private void addExemplars(Partition shard) {
+            /*
+             * fold each shard exemplar into a close exemplar here, summing their members.
+             * Members of the folded exemplar that are not within the radius of their new exemplar are
+             * assigned again one by one, so every row stays within the radius of its exemplar.
+             */
+            ExemplarStore shardStore = shard.store;
+            int[] offsets = shardStore.memberOffsets();
+            int[] members = shardStore.members();
+            double[] e = new double[nCols];
+            for (int k = 0; k < shardStore.size(); k++) {
+                shardStore.copyInto(k, e);
+                int exemplar = search.find(e, null);
+                if (exemplar < 0) {
+                    exemplar = search.add(e, shardStore.getRowIndex(k));
+                    for (int m = offsets[k]; m < offsets[k + 1]; m++)
+                        store.addMember(exemplar, members[m]);
+                    store.cover(exemplar, shardStore.getSpread(k), shardStore.isIncomplete(k));
+                    /* the visiting order counted the exemplar's own row when it was added */
+                    search.matched(exemplar, offsets[k + 1] - offsets[k] - 1);
+                    continue;
+                }
+                int kept = 0;
+                for (int m = offsets[k]; m < offsets[k + 1]; m++) {
+                    int i = members[m];
+                    dataSource.getRow(i, rowBuffer);
+                    double d = store.distanceBound(exemplar, rowBuffer, delta);
+                    if (d < delta) {
+                        store.addMember(exemplar, i);
+                        store.cover(exemplar, rowBuffer, d);
+                        kept++;
+                    } else {
+                        addRow(i, rowBuffer);
+                    }
+                }
+                search.matched(exemplar, kept);
+            }
+        }
+
+        private void rebuildIndex() {
+            search.reindex(createExemplarIndex(Math.sqrt(delta)));
+        }
+    }
+
+    private VisitingOrder createVisitingOrder(Random random) {
+        return createVisitingOrder(visitingOrder, random);
+    }
+
+    private ExemplarIndex createExemplarIndex(double radius) {
+        return createExemplarIndex(indexType, gridColumns, radius);
+    }
+
+    static VisitingOrder createVisitingOrder(String visitingOrder, Random random) {
+        if (visitingOrder.equalsIgnoreCase("cyclic"))
+            return new CyclicVisitingOrder(random);
+        if (visitingOrder.equalsIgnoreCase("recent"))
+            return new RecentVisitingOrder();
+        if (visitingOrder.equalsIgnoreCase("populous"))
+            return new PopulousVisitingOrder();
+        return new RandomVisitingOrder(random);
+    }
+
+    static ExemplarIndex createExemplarIndex(String indexType, int[] gridColumns, double radius) {
+        if (indexType.equalsIgnoreCase("grid"))
+            return new GridExemplarIndex(gridColumns, radius);
+        return new LinearExemplarIndex();
     }
 }
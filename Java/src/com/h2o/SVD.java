@@ -373,14 +373,14 @@ public class SVD {
                         a[i] = a[ip1];
                         a[ip1] = p;
                         if (u != null) {
-                            for (int ii = 0; ii < n; ii++) {
+                            for (int ii = 0; ii < u.length; ii++) {
                                 p = u[ii][i];
                                 u[ii][i] = u[ii][ip1];
                                 u[ii][ip1] = p;
                             }
                         }
                         if (v != null) {
-                            for (int ii = 0; ii < n; ii++) {
+                            for (int ii = 0; ii < v.length; ii++) {
                                 p = v[ii][i];
                                 v[ii][i] = v[ii][ip1];
                                 v[ii][ip1] = p;
@@ -0,0 +1,192 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SampledPairs {
+    /*
+     * squared distances on each column for a uniform random sample of pairs of distinct rows (drawn with
+     * replacement), from which ColumnSketcher estimates the Frobenius correlation between the distances on
+     * all columns and on a set of columns. The correlation is a ratio of means, E[xy] / sqrt(E[x^2] E[y^2]),
+     * so its standard error comes from the delta method: the estimate moves with the sample mean of the
+     * influence of each pair,
+     *     psi = r (xy / E[xy] - x^2 / (2 E[x^2]) - y^2 / (2 E[y^2])).
+     * Two candidates are scored on the same pairs, so their difference has the influence psi_a - psi_b,
+     * which is usually far less variable than either one.
+     */
+    private Matrix data;
+    private int nRows, nCols;
+    private double[] ri, rj;
+    private double[] cumulativeWeights;
+    private int ignoredColumn;
+    private Random random;
+    private double[] distances = new double[0];
+    private double[] totals = new double[0];
+    private double[] selected = new double[0];
+    private int size;
+    private IntList selectedColumns = new IntList();
+    private double targetSquares;
+    private double selectedCross, selectedSquares;
+    private double[] cross, squares, correlations;
+
+    public SampledPairs(Matrix data, long seed) {
+        this(data, null, -1, seed);
+    }
+
+    public SampledPairs(Matrix data, double[] weights, int ignoredColumn, long seed) {
+        /*
+         * with weights, rows are drawn with probability proportional to their weight, so pair (i, j) is drawn
+         * in proportion to weights[i] * weights[j]; ignoredColumn is left out of the distances on all columns
+         */
+        this.data = data;
+        this.ignoredColumn = ignoredColumn;
+        nRows = data.getNumRows();
+        nCols = data.getNumCols();
+        if (weights != null) {
+            cumulativeWeights = new double[nRows];
+            double sum = 0;
+            for (int i = 0; i < nRows; i++) {
+                sum += weights[i];
+                cumulativeWeights[i] = sum;
+            }
+        }
+        ri = new double[nCols];
+        rj = new double[nCols];
+        random = new Random(seed);
+        cross = new double[nCols];
+        squares = new double[nCols];
+        correlations = new double[nCols];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void draw(int count) {
+        /* adds count pairs to the sample */
+        if (size + count > totals.length) {
+            int capacity = Math.max(size + count, 2 * totals.length);
+            distances = Arrays.copyOf(distances, capacity * nCols);
+            totals = Arrays.copyOf(totals, capacity);
+            selected = Arrays.copyOf(selected, capacity);
+        }
+        for (int s = size; s < size + count; s++) {
+            int i;
+            int j;
+            if (cumulativeWeights == null) {
+                i = random.nextInt(nRows);
+                j = random.nextInt(nRows - 1);
+                if (j >= i)
+                    j++;
+            } else {
+                do {
+                    i = weightedRow();
+                    j = weightedRow();
+                } while (i == j);
+            }
+            data.getRow(i, ri);
+            data.getRow(j, rj);
+            double total = 0;
+            for (int k = 0; k < nCols; k++) {
+                double d = ri[k] - rj[k];
+                d = Double.isNaN(d) ? 0 : d * d;
+                distances[s * nCols + k] = d;
+                if (k != ignoredColumn)
+                    total += d;
+            }
+            totals[s] = total;
+            double sum = 0;
+            for (int l = 0; l < selectedColumns.size(); l++)
+                sum += distances[s * nCols + selectedColumns.get(l)];
+            selected[s] = sum;
+            targetSquares += total * total;
+            selectedCross += total * sum;
+            selectedSquares += sum * sum;
+        }
+        size += count;
+    }
+
+    private int weightedRow() {
+        /* the first row whose cumulative weight exceeds a uniform draw */
+        double u = random.nextDouble() * cumulativeWeights[nRows - 1];
+        int low = 0;
+        int high = nRows - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] > u)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
+    }
+
+    public void select(int column) {
+        /* adds column to the selected columns the candidates are scored with */
+        selectedColumns.add(column);
+        selectedCross = 0;
+        selectedSquares = 0;
+        for (int s = 0; s < size; s++) {
+            selected[s] += distances[s * nCols + column];
+            selectedCross += totals[s] * selected[s];
+            selectedSquares += selected[s] * selected[s];
+        }
+    }
+
+    public double correlation(int column) {
+        /* estimated correlation with the selected columns plus column */
+        double xy = 0;
+        double y2 = 0;
+        for (int s = 0; s < size; s++) {
+            double y = selected[s] + distances[s * nCols + column];
+            xy += totals[s] * y;
+            y2 += y * y;
+        }
+        cross[column] = xy;
+        squares[column] = y2;
+        correlations[column] = xy / (Math.sqrt(targetSquares) * Math.sqrt(y2));
+        return correlations[column];
+    }
+
+    public double standardError(int column) {
+        /* of the last correlation(column) */
+        double sum = 0;
+        for (int s = 0; s < size; s++) {
+            double psi = influence(column, s);
+            sum += psi * psi;
+        }
+        return Math.sqrt(sum / size / size);
+    }
+
+    public double differenceError(int a, int b) {
+        /* standard error of the difference between the last correlations of columns a and b */
+        double sum = 0;
+        for (int s = 0; s < size; s++) {
+            double psi = influence(a, s) - influence(b, s);
+            sum += psi * psi;
+        }
+        return Math.sqrt(sum / size / size);
+    }
+
+    private double influence(int column, int s) {
+        /* means are sums over size pairs, so the factors of size cancel */
+        double x = totals[s];
+        double y = selected[s] + distances[s * nCols + column];
+        return size * correlations[column] * (x * y / cross[column] - x * x / (2 * targetSquares) - y * y / (2 * squares[column]));
+    }
+}
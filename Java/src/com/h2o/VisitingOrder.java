@@ -0,0 +1,69 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+public interface VisitingOrder {
+    /*
+     * the order in which RowSketcher compares a row with candidate exemplars; the first exemplar within the
+     * radius wins, so a good order finds it after few distance evaluations. Orders must not allocate per row.
+     */
+
+    /* prepares a visit of candidates, or of all nExemplars exemplars when candidates is null */
+    void start(IntList candidates, int nExemplars);
+
+    /* returns the next exemplar to compare with, or -1 when every candidate has been visited */
+    int next();
+
+    /* a row was assigned to exemplar */
+    void matched(int exemplar);
+
+    /* several rows were assigned to exemplar at once, as when RowSketcher merges shard sketches */
+    default void matched(int exemplar, int rows) {
+        for (int r = 0; r < rows; r++)
+            matched(exemplar);
+    }
+
+    /* exemplar was just created, numbered after all earlier ones */
+    void added(int exemplar);
+
+    static void heapify(IntList candidates, long[] keys) {
+        /* arranges candidates as a max-heap on keys, so the largest can be taken off one at a time */
+        for (int i = candidates.size() / 2 - 1; i >= 0; i--)
+            siftDown(candidates, i, candidates.size(), keys);
+    }
+
+    static int takeLargest(IntList candidates, int heapSize, long[] keys) {
+        /* removes the top of a heap of heapSize candidates and returns it */
+        int top = candidates.get(0);
+        candidates.set(0, candidates.get(heapSize - 1));
+        siftDown(candidates, 0, heapSize - 1, keys);
+        return top;
+    }
+
+    static void siftDown(IntList heap, int i, int heapSize, long[] keys) {
+        int e = heap.get(i);
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && keys[heap.get(child + 1)] > keys[heap.get(child)])
+                child++;
+            if (keys[heap.get(child)] <= keys[e])
+                break;
+            heap.set(i, heap.get(child));
+            i = child;
+        }
+        heap.set(i, e);
+    }
+}
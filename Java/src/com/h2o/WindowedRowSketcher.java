@@ -0,0 +1,279 @@
+/*
+ * Sketcher -- A matrix sketch algorithm.
+ *
+ * Copyright 2020 by Leland Wilkinson.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version 1.1 (the "License")
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the License.
+ *
+ */
+
+package com.h2o;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class WindowedRowSketcher {
+    /*
+     * a streaming row sketch of recent rows only.
+     * In "window" mode an exemplar represents the rows among the last span rows it was matched by; the
+     * exemplars of the last span rows are kept in a ring, so the row leaving the window takes one from its
+     * exemplar's count in constant time. In "decay" mode a row counts for 2^(-age / span), so span is a
+     * half life in rows; weights are decayed lazily, and a clock hand checks two exemplars per row, so an
+     * exemplar whose weight has fallen below minWeight is found within a few passes over the exemplars.
+     *
+     * Evicted exemplars are only marked dead, and rows skip them. Once dead exemplars outnumber live ones the
+     * store, index and visiting order are rebuilt from the live exemplars, which costs at most two steps per
+     * evicted exemplar, so a row costs amortized constant time on top of the search for its exemplar.
+     * Exemplars keep stable slots across rebuilds, so the ring never has to be rewritten. A "populous" visiting
+     * order only counts matches, so a rebuild seeds its new order with the current weights.
+     */
+    private static final int SWEEP = 2;
+    private static final int MIN_REBUILD = 16;
+
+    private DataStream dataStream;
+    private String[] colNames;
+    private int nCols;
+    private double radius;
+    private String mode;
+    private double span;
+    private double minWeight = 0.01;
+    private double logDecay;
+    private String indexType = "linear";
+    private String visitingOrder = "random";
+    private String precision = Precision.DOUBLE;
+    private Random random = new Random(RowSketcher.seed);
+
+    private ExemplarStore store;
+    private ExemplarSearch search;
+    private long pastEvaluations;
+    private boolean[] dead = new boolean[16];
+    private int nDead;
+    private int hand;
+
+    /* per slot: the exemplar it holds, its weight at time stamps[slot], and the slot of each store exemplar */
+    private int[] exemplars = new int[16];
+    private double[] weights = new double[16];
+    private long[] stamps = new long[16];
+    private int[] slots = new int[16];
+    private int nSlots;
+    private IntList freeSlots = new IntList();
+    private int[] ring;
+    private long now;
+    private long evictions;
+
+    public WindowedRowSketcher(DataStream dataStream, double radius, String mode, double span) {
+        /* mode is "window" (span is a number of rows) or "decay" (span is a half life in rows) */
+        this.dataStream = dataStream;
+        this.radius = radius;
+        this.mode = mode;
+        this.span = span;
+        colNames = dataStream.getColumnNames();
+        nCols = dataStream.getNumCols();
+        if (!isWindowed() && !mode.equalsIgnoreCase("decay"))
+            throw new IllegalArgumentException("unknown mode " + mode);
+        if (span < 1)
+            throw new IllegalArgumentException("span must be at least one row");
+    }
+
+    public void setIndexType(String indexType) {
+        /* see RowSketcher.setIndexType */
+        this.indexType = indexType;
+    }
+
+    public void setVisitingOrder(String visitingOrder) {
+        /* see RowSketcher.setVisitingOrder */
+        this.visitingOrder = visitingOrder;
+    }
+
+    public void setPrecision(String precision) {
+        /* see RowSketcher.setPrecision */
+        this.precision = precision;
+    }
+
+    public void setMinWeight(double minWeight) {
+        /* in decay mode, exemplars whose weight falls below minWeight are evicted */
+        this.minWeight = minWeight;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public int getNumExemplars() {
+        return store == null ? 0 : store.size() - nDead;
+    }
+
+    public long getDistanceEvaluations() {
+        /* over all searches, including those replaced by a rebuild */
+        return pastEvaluations + (search == null ? 0 : search.distanceEvaluations);
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getRowsProcessed() {
+        return now;
+    }
+
+    public void compute() {
+        double[] row = new double[nCols];
+        while (dataStream.next(row))
+            offer(row);
+        snapshot().write("rowsketch.csv");
+        System.out.println ("WindowedRowSketcher output file name is rowsketch.csv");
+        System.out.println ("WindowedRowSketcher output number of rows "+ getNumExemplars());
+        System.out.println ("WindowedRowSketcher evicted exemplars "+ evictions);
+        System.out.println ("WindowedRowSketcher distance evaluations per row "+ (double) getDistanceEvaluations() / now);
+    }
+
+    public void offer(double[] row) {
+        /* adds the next row of the stream, after retiring what has left the window or decayed away */
+        if (store == null)
+            initialize();
+        if (isWindowed()) {
+            int position = (int) (now % ring.length);
+            if (now >= ring.length) {
+                int slot = ring[position];
+                if (--weights[slot] == 0)
+                    evict(slot);
+            }
+        } else {
+            sweep();
+        }
+        int exemplar = search.find(row, dead);
+        double distance = search.foundDistance;
+        int slot;
+        if (exemplar < 0) {
+            slot = newSlot();
+            exemplar = addExemplar(row, (int) Math.min(now, Integer.MAX_VALUE), slot);
+            weights[slot] = 0;
+            distance = 0;
+        } else {
+            slot = slots[exemplar];
+            search.matched(exemplar);
+        }
+        weights[slot] = weight(slot) + 1;
+        stamps[slot] = now;
+        store.cover(exemplar, row, distance);
+        if (isWindowed())
+            ring[(int) (now % ring.length)] = slot;
+        now++;
+    }
+
+    public RowSketch snapshot() {
+        /* the live exemplars with their current weights */
+        if (store == null)
+            return new ExemplarStore(nCols, 0, false, precision).toSketch(colNames, null, null, radius, RowSketcher.seed, null, null);
+        double[] frequencies = new double[store.size()];
+        for (int i = 0; i < store.size(); i++) {
+            if (!dead[i])
+                frequencies[i] = weight(slots[i]);
+        }
+        boolean normalized = dataStream.isNormalized();
+        return store.toSketch(colNames, frequencies, dead, radius, RowSketcher.seed,
+                normalized ? dataStream.minValues : null, normalized ? dataStream.maxValues : null);
+    }
+
+    private boolean isWindowed() {
+        return mode.equalsIgnoreCase("window");
+    }
+
+    private void initialize() {
+        if (radius <= 0)
+            radius = RowSketcher.defaultRadius(nCols);
+        if (Precision.isQuantized(precision) && !dataStream.isNormalized())
+            throw new IllegalArgumentException("quantized exemplars need normalized data");
+        if (isWindowed())
+            ring = new int[(int) Math.min(span, Integer.MAX_VALUE - 8)];
+        else
+            logDecay = -Math.log(2) / span;
+        rebuild();
+    }
+
+    private double weight(int slot) {
+        /* the weight of a slot now; window counts do not decay */
+        if (isWindowed())
+            return weights[slot];
+        return weights[slot] * Math.exp(logDecay * (now - stamps[slot]));
+    }
+
+    private void sweep() {
+        for (int k = 0; k < SWEEP && store.size() > 0; k++) {
+            if (hand >= store.size())
+                hand = 0;
+            if (!dead[hand] && weight(slots[hand]) < minWeight)
+                evict(slots[hand]);
+            hand++;
+        }
+    }
+
+    private void evict(int slot) {
+        dead[exemplars[slot]] = true;
+        nDead++;
+        evictions++;
+        freeSlots.add(slot);
+        if (nDead >= MIN_REBUILD && nDead > store.size() - nDead)
+            rebuild();
+    }
+
+    private int newSlot() {
+        if (freeSlots.size() > 0)
+            return freeSlots.removeLast();
+        if (nSlots == exemplars.length) {
+            exemplars = Arrays.copyOf(exemplars, 2 * nSlots);
+            weights = Arrays.copyOf(weights, 2 * nSlots);
+            stamps = Arrays.copyOf(stamps, 2 * nSlots);
+        }
+        return nSlots++;
+    }
+
+    private void rebuild() {
+        /* a fresh store, index and visiting order holding only the live exemplars, in their old order */
+        ExemplarStore old = store;
+        boolean[] oldDead = dead;
+        int[] oldSlots = slots;
+        int live = old == null ? 0 : old.size() - nDead;
+        if (search != null)
+            pastEvaluations += search.distanceEvaluations;
+        store = new ExemplarStore(nCols, 0, false, precision);
+        int[] gridColumns = GridExemplarIndex.widestColumns(
+                RowSketcher.columnRanges(dataStream.isNormalized(), dataStream.minValues, dataStream.maxValues), 3);
+        search = new ExemplarSearch(store, RowSketcher.createExemplarIndex(indexType, gridColumns, radius),
+                RowSketcher.createVisitingOrder(visitingOrder, random), radius);
+        dead = new boolean[Math.max(16, 2 * live)];
+        slots = new int[dead.length];
+        nDead = 0;
+        hand = 0;
+        if (old == null)
+            return;
+        double[] e = new double[nCols];
+        for (int i = 0; i < old.size(); i++) {
+            if (oldDead[i])
+                continue;
+            old.copyInto(i, e);
+            int exemplar = addExemplar(e, old.getRowIndex(i), oldSlots[i]);
+            store.cover(exemplar, old.getSpread(i), old.isIncomplete(i));
+            if (visitingOrder.equalsIgnoreCase("populous"))
+                search.matched(exemplar, (int) Math.max(0, Math.round(weight(oldSlots[i])) - 1));
+        }
+    }
+
+    private int addExemplar(double[] row, int rowIndex, int slot) {
+        int exemplar = search.add(row, rowIndex);
+        if (exemplar == dead.length) {
+            dead = Arrays.copyOf(dead, 2 * exemplar);
+            slots = Arrays.copyOf(slots, 2 * exemplar);
+        }
+        dead[exemplar] = false;
+        slots[exemplar] = slot;
+        exemplars[slot] = exemplar;
+        return exemplar;
+    }
+}